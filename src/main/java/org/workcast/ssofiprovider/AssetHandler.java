@@ -0,0 +1,322 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the fixed files in the "$" folder: style sheet and images.
+ *
+ * Every file gets an ETag made from a digest of its content, a Last-Modified
+ * date and a Cache-Control header, so that browsers keep them and, when they
+ * do ask again, can be told with a 304 that nothing changed. Small files are
+ * kept in memory; larger ones are sent from the file with
+ * FileChannel.transferTo. If a file on disk changes, it is read again.
+ *
+ * Text files kept in memory also get a gzip compressed copy, made once when
+ * the file is read. All files are read when the handler is created, so this
+ * work is done at startup. Browsers that accept gzip get the compressed copy,
+ * with its own ETag, and "Vary: Accept-Encoding" tells caches in between to
+ * keep the two apart.
+ *
+ * Settings: assetMaxAgeSeconds (default one year) is how long browsers may
+ * use a file without asking, and assetCacheMaxBytes (default 65536) is the
+ * largest file kept in memory.
+ */
+public class AssetHandler {
+
+    private final File folder;
+    private final ServletContext sc;
+    private final long maxAgeSeconds;
+    private final long cacheMaxBytes;
+    private final ConcurrentHashMap<String, Asset> assets = new ConcurrentHashMap<String, Asset>();
+
+    /**
+     * One file as last read
+     */
+    private static class Asset {
+        File file;
+        long lastModified;
+        long length;
+        String etag;
+        String contentType;
+        byte[] content; // null when too large to keep in memory
+        byte[] gzipContent; // null when not worth compressing
+        String gzipEtag;
+    }
+
+    public AssetHandler(ServletContext sc, File folder, Properties configSettings)
+            throws Exception {
+        this.sc = sc;
+        this.folder = folder;
+        maxAgeSeconds = getLongSetting(configSettings, "assetMaxAgeSeconds", 365L * 24 * 3600);
+        cacheMaxBytes = getLongSetting(configSettings, "assetCacheMaxBytes", 65536);
+
+        // read and compress everything now rather than on the first requests
+        File[] children = folder.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isFile()) {
+                    getAsset(child.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * number of files currently known
+     */
+    public int getAssetCount() {
+        return assets.size();
+    }
+
+    public void serve(String name, HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        Asset asset = getAsset(name);
+        if (asset == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        boolean zipped = asset.gzipContent != null && acceptsGzip(request);
+        String etag = zipped ? asset.gzipEtag : asset.etag;
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", asset.lastModified);
+        response.setHeader("Cache-Control", "public, max-age=" + maxAgeSeconds);
+        if (asset.gzipContent != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (notModified(etag, asset.lastModified, request)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType(asset.contentType);
+        ServletOutputStream out;
+        if (zipped) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength(asset.gzipContent.length);
+            out = response.getOutputStream();
+            out.write(asset.gzipContent);
+        }
+        else if (asset.content != null) {
+            response.setContentLength((int) asset.length);
+            out = response.getOutputStream();
+            out.write(asset.content);
+        }
+        else {
+            response.setContentLength((int) asset.length);
+            out = response.getOutputStream();
+            FileInputStream fis = new FileInputStream(asset.file);
+            try {
+                FileChannel channel = fis.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long pos = 0;
+                long size = channel.size();
+                while (pos < size) {
+                    pos += channel.transferTo(pos, size - pos, target);
+                }
+            }
+            finally {
+                fis.close();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * If-None-Match is checked when given, otherwise If-Modified-Since
+     */
+    private boolean notModified(String etag, long lastModified, HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals(etag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long since = request.getDateHeader("If-Modified-Since");
+            // the header only has whole seconds
+            return since >= 0 && since >= (lastModified / 1000) * 1000;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * returns the current version of the file, or null if there is no such
+     * file
+     */
+    private Asset getAsset(String name) throws Exception {
+        if (name.length() == 0 || name.indexOf("..") >= 0 || name.indexOf('\\') >= 0
+                || name.startsWith("/")) {
+            return null;
+        }
+        File file = new File(folder, name);
+        long lastModified = file.lastModified();
+        Asset asset = assets.get(name);
+        if (asset != null && asset.lastModified == lastModified
+                && asset.length == file.length()) {
+            return asset;
+        }
+        if (!file.isFile()) {
+            assets.remove(name);
+            return null;
+        }
+        asset = readAsset(name, file, lastModified);
+        assets.put(name, asset);
+        return asset;
+    }
+
+    private Asset readAsset(String name, File file, long lastModified) throws Exception {
+        Asset asset = new Asset();
+        asset.file = file;
+        asset.lastModified = lastModified;
+        asset.length = file.length();
+        asset.contentType = sc.getMimeType(name);
+        if (asset.contentType == null) {
+            asset.contentType = "application/octet-stream";
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        boolean keep = asset.length <= cacheMaxBytes;
+        byte[] content = new byte[keep ? (int) asset.length : 8192];
+        InputStream is = new FileInputStream(file);
+        try {
+            if (keep) {
+                int pos = 0;
+                while (pos < content.length) {
+                    int amt = is.read(content, pos, content.length - pos);
+                    if (amt < 0) {
+                        throw new Exception("The file (" + file + ") became shorter while "
+                                + "being read");
+                    }
+                    pos += amt;
+                }
+                digest.update(content);
+                asset.content = content;
+            }
+            else {
+                int amt = is.read(content);
+                while (amt >= 0) {
+                    digest.update(content, 0, amt);
+                    amt = is.read(content);
+                }
+            }
+        }
+        finally {
+            is.close();
+        }
+        byte[] hash = digest.digest();
+        String tag = PasswordEncrypter.hexEncode(Arrays.copyOf(hash, 12));
+        asset.etag = "\"" + tag + "\"";
+
+        if (asset.content != null && isCompressible(asset.contentType)) {
+            PageBuffer plain = new PageBuffer(asset.content.length);
+            plain.write(asset.content, 0, asset.content.length);
+            PageBuffer zipped = plain.gzip(Deflater.BEST_COMPRESSION);
+            // not worth it unless it saves at least a tenth
+            if (zipped.size() < asset.content.length * 9 / 10) {
+                asset.gzipContent = zipped.toByteArray();
+                asset.gzipEtag = "\"" + tag + "-gz\"";
+            }
+        }
+        return asset;
+    }
+
+    /**
+     * Images are compressed already, text is worth compressing
+     */
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.indexOf("javascript") >= 0
+                || contentType.indexOf("json") >= 0 || contentType.indexOf("xml") >= 0
+                || contentType.equals("image/svg+xml");
+    }
+
+    /**
+     * Tells whether the browser said it can take gzip content, and did not
+     * give it a quality of zero.
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equalsIgnoreCase("x-gzip")) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") && isZero(param.substring(2))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isZero(String quality) {
+        try {
+            return Double.parseDouble(quality.trim()) == 0;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static long getLongSetting(Properties configSettings, String key, long defaultVal)
+            throws Exception {
+        String val = configSettings.getProperty(key);
+        if (val == null || val.trim().length() == 0) {
+            return defaultVal;
+        }
+        try {
+            return Long.parseLong(val.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new Exception("The setting for '" + key
+                    + "' in the configuration file must be a number, got (" + val + ")");
+        }
+    }
+}
@@ -22,7 +22,6 @@ package org.workcast.ssofiprovider;
 import java.io.Serializable;
 import java.util.Enumeration;
 import java.util.Properties;
-import java.util.Random;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -82,6 +81,13 @@ public class AuthSession implements Serializable {
         return authIdentity;
     }
 
+    /**
+     * true when there is something that clearError would throw away
+     */
+    public boolean hasError() {
+        return errMsg != null || !savedParams.isEmpty();
+    }
+
     public void clearError() {
         errMsg = null;
         savedParams.clear();
@@ -116,18 +122,17 @@ public class AuthSession implements Serializable {
     }
 
     private static String createMagicNumber() {
-        Random rand = new Random();
         String nineLetters = IdGenerator.generateKey();
         StringBuffer betterNumber = new StringBuffer(20);
         betterNumber.append(nineLetters.substring(0, 3));
         betterNumber.append("-");
-        betterNumber.append((char) ('A' + rand.nextInt(26)));
-        betterNumber.append((char) ('A' + rand.nextInt(26)));
+        betterNumber.append((char) ('A' + RandomSource.nextInt(26)));
+        betterNumber.append((char) ('A' + RandomSource.nextInt(26)));
         betterNumber.append("-");
         betterNumber.append(nineLetters.substring(3, 6));
         betterNumber.append("-");
-        betterNumber.append((char) ('A' + rand.nextInt(26)));
-        betterNumber.append((char) ('A' + rand.nextInt(26)));
+        betterNumber.append((char) ('A' + RandomSource.nextInt(26)));
+        betterNumber.append((char) ('A' + RandomSource.nextInt(26)));
         betterNumber.append("-");
         betterNumber.append(nineLetters.substring(6, 9));
         return betterNumber.toString();
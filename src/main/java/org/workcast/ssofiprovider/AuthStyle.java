@@ -19,6 +19,8 @@
  */
 package org.workcast.ssofiprovider;
 
+import java.util.List;
+
 /**
  * An interface to represent the various possible authentication options: LDAP,
  * LocalFile, others.
@@ -74,4 +76,15 @@ public interface AuthStyle {
      * Search for closest ID
      */
     public String searchForID(String searchTerm) throws Exception;
+
+    /**
+     * The ids that the search term could mean, best match first, for telling
+     * the user which ones to choose from when searchForID finds no single id.
+     */
+    public List<String> searchCandidates(String searchTerm) throws Exception;
+
+    /**
+     * Stop any background threads. Called when the servlet is destroyed.
+     */
+    public void shutdown();
 }
@@ -20,19 +20,38 @@
 package org.workcast.ssofiprovider;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
-
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.naming.AuthenticationException;
 import javax.naming.NamingEnumeration;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 /**
  * Collect all the LDAP specific functionality into this class
@@ -41,6 +60,7 @@ public class AuthStyleLDAP implements AuthStyle {
 
     String factoryInitial;
     String providerUrl;
+    LDAPServerPool serverPool;
     String securityAuthentication;
     String securityPrincipal;
     String securityCredentials;
@@ -48,26 +68,104 @@ public class AuthStyleLDAP implements AuthStyle {
     String queryBase;
     String queryPrefix;
     String queryPostfix;
-    Hashtable<String, String> htLDAP;
     String adminGroup;
 
     /**
-     * this is the list of IDS that are administrators
+     * this is the set of IDS that are administrators. The set is never modified
+     * in place: a refresh builds a new unmodifiable set and swaps the reference,
+     * so isAdmin can read it without any locking. Empty until the first load
+     * from the directory completes.
+     */
+    private volatile Set<String> adminSet = Collections.emptySet();
+
+    /**
+     * how often, in seconds, the admin group is read again from the directory
      */
-    private List<String> adminList;
+    private int adminRefreshSeconds;
+
+    /**
+     * background thread for loading and refreshing the admin group, so that a
+     * slow directory server does not hold up servlet initialization. Also used
+     * to probe the directory servers.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * All directory calls made on behalf of a request run on this pool, which
+     * has a fixed number of threads and a short queue. When the directory is
+     * slow, requests pile up here and get turned away, instead of holding on
+     * to every thread the servlet container has.
+     */
+    private ThreadPoolExecutor directoryPool;
+
+    /**
+     * open connections to the directory servers, reused between requests
+     */
+    private LDAPConnectionPool connectionPool;
+
+    /**
+     * the longest a request thread will wait for a complete directory call
+     */
+    private long callTimeout;
+
+    /**
+     * A unit of work done against a directory server. The context passed in
+     * is connected to the server chosen by the server pool and bound as the
+     * service account. It goes back to the connection pool afterwards, so it
+     * must not be closed or rebound by the call.
+     */
+    interface DirectoryCall<T> {
+        T run(DirContext ctx) throws Exception;
+    }
 
     /**
      * OpenID is very "bursty" meaning that a single user tends to make multiple
-     * requests right in a row. So saving the last user info will probably cut
-     * the LDAP requests in half or thirds. Should probably keep a cache of 10
-     * users, and should time them out at time rate.
+     * requests right in a row. So caching the user info will probably cut the
+     * LDAP requests in half or thirds. The entry includes the DN of the user,
+     * which lets a login skip the search and go straight to the bind.
+     */
+    private ExpiringCache<String, UserInformation> userCache;
+
+    /**
+     * how long logins take when the DN was already cached, and when it had to
+     * be searched for first
+     */
+    private final LatencyCounter cachedLogins = new LatencyCounter();
+    private final LatencyCounter searchedLogins = new LatencyCounter();
+
+    /**
+     * Results of recent searches from the identity lookup box, keyed by the
+     * lower case search term. People tend to type the same few things.
+     */
+    private ExpiringCache<String, List<String>> searchCache;
+
+    /**
+     * most candidates a search returns, and how many entries the directory
+     * sends per page while collecting them
+     */
+    private int searchLimit;
+    private int searchPageSize;
+
+    /**
+     * shorter search terms are only matched at the start of an id, a
+     * substring search for one or two letters would touch most of the
+     * directory
      */
-    private UserInformation lastUserLookedUp;
+    private static final int MIN_SUBSTRING_LENGTH = 3;
 
     public AuthStyleLDAP(Properties configSettings) throws Exception {
 
         factoryInitial = getRequiredConfigProperty(configSettings, "java.naming.factory.initial");
         providerUrl = getRequiredConfigProperty(configSettings, "java.naming.provider.url");
+        serverPool = new LDAPServerPool(providerUrl, getIntConfigProperty(configSettings,
+                "ldapFailureThreshold", 3));
+        int probeSeconds = getPositiveIntConfigProperty(configSettings, "ldapProbeSeconds", 30);
+        int connectTimeout = getIntConfigProperty(configSettings, "ldapConnectTimeout", 3000);
+        int readTimeout = getIntConfigProperty(configSettings, "ldapReadTimeout", 10000);
+        callTimeout = getIntConfigProperty(configSettings, "ldapCallTimeout", connectTimeout
+                + readTimeout);
+        int maxThreads = getIntConfigProperty(configSettings, "ldapMaxThreads", 10);
+        int maxWaiting = getIntConfigProperty(configSettings, "ldapMaxWaiting", 20);
         securityAuthentication = getRequiredConfigProperty(configSettings,
                 "java.naming.security.authentication");
         securityPrincipal = getRequiredConfigProperty(configSettings,
@@ -75,6 +173,8 @@ public class AuthStyleLDAP implements AuthStyle {
         securityCredentials = getRequiredConfigProperty(configSettings,
                 "java.naming.security.credentials");
         adminGroup = getRequiredConfigProperty(configSettings, "adminGroup");
+        adminRefreshSeconds = getPositiveIntConfigProperty(configSettings, "adminRefreshSeconds",
+                600);
         queryBase = getRequiredConfigProperty(configSettings, "queryBase");
         String queryFilter = getRequiredConfigProperty(configSettings, "queryFilter");
 
@@ -87,14 +187,80 @@ public class AuthStyleLDAP implements AuthStyle {
         queryPrefix = queryFilter.substring(0, idLoc);
         queryPostfix = queryFilter.substring(idLoc + 4);
 
-        htLDAP = new Hashtable<String, String>();
-        htLDAP.put("java.naming.factory.initial", factoryInitial);
-        htLDAP.put("java.naming.provider.url", providerUrl);
-        htLDAP.put("java.naming.security.authentication", securityAuthentication);
-        htLDAP.put("java.naming.security.principal", securityPrincipal);
-        htLDAP.put("java.naming.security.credentials", securityCredentials);
+        connectionPool = new LDAPConnectionPool(factoryInitial, securityAuthentication,
+                securityPrincipal, securityCredentials, "true".equalsIgnoreCase(configSettings
+                        .getProperty("ldapStartTLS")), connectTimeout, readTimeout,
+                getIntConfigProperty(configSettings, "ldapPoolSize", maxThreads),
+                getIntConfigProperty(configSettings, "ldapPoolIdleSeconds", 60) * 1000L);
+        userCache = new ExpiringCache<String, UserInformation>(getIntConfigProperty(
+                configSettings, "ldapUserCacheSize", 1000), getIntConfigProperty(configSettings,
+                "ldapUserCacheSeconds", 300) * 1000L);
+        int reportSeconds = getIntConfigProperty(configSettings, "ldapReportSeconds", 3600);
+        searchLimit = getIntConfigProperty(configSettings, "ldapSearchLimit", 20);
+        searchPageSize = getIntConfigProperty(configSettings, "ldapSearchPageSize", 10);
+        searchCache = new ExpiringCache<String, List<String>>(500, getIntConfigProperty(
+                configSettings, "ldapSearchCacheSeconds", 120) * 1000L);
+
+        Metrics.setGauge("ssofi_ldap_user_cache_entries", "Users kept in the LDAP user cache",
+                new Metrics.Gauge() {
+                    public long getValue() {
+                        return userCache.size();
+                    }
+                });
+        Metrics.setGauge("ssofi_ldap_search_cache_entries",
+                "Searches kept in the LDAP search cache", new Metrics.Gauge() {
+                    public long getValue() {
+                        return searchCache.size();
+                    }
+                });
+        Metrics.setGauge("ssofi_ldap_idle_connections", "Idle pooled LDAP connections",
+                new Metrics.Gauge() {
+                    public long getValue() {
+                        return connectionPool.getIdleCount();
+                    }
+                });
+
+        directoryPool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxWaiting), new DaemonThreadFactory(
+                        "SSOFI-LDAP-call"));
+        directoryPool.allowCoreThreadTimeOut(true);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                "SSOFI-LDAP"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refreshAdminSet();
+            }
+        }, 0, adminRefreshSeconds, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                probeServers();
+            }
+        }, probeSeconds, probeSeconds, TimeUnit.SECONDS);
+        if (reportSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    Log.info("AuthStyleLDAP: " + getLoginStats());
+                    userCache.removeExpired();
+                    searchCache.removeExpired();
+                }
+            }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        directoryPool.shutdownNow();
+        connectionPool.closeAll();
+    }
 
-        adminList = initAdminUserList();
+    /**
+     * a one line summary of login times with and without a cached DN
+     */
+    public String getLoginStats() {
+        return "logins with cached DN: " + cachedLogins + "; logins needing search: "
+                + searchedLogins + "; cached users: " + userCache.size()
+                + "; idle connections: " + connectionPool.getIdleCount();
     }
 
     public String getStyleIndicator() {
@@ -102,38 +268,38 @@ public class AuthStyleLDAP implements AuthStyle {
     }
 
     public boolean authenticateUser(String userNetId, String userPwd) throws Exception {
+        // an LDAP bind with an empty password is an anonymous bind, and
+        // succeeds on most servers, so it must never count as a login
+        if (userPwd == null || userPwd.length() == 0) {
+            return false;
+        }
+        long startTime = System.nanoTime();
         try {
+            UserInformation cached = userCache.get(userNetId);
+            if (cached != null) {
+                if (bindAsUser(cached.directoryName, userPwd)) {
+                    cachedLogins.record(System.nanoTime() - startTime);
+                    return true;
+                }
+                // the user might have been moved or renamed in the directory
+                // since it was cached, so search again before saying no
+                userCache.remove(userNetId);
+            }
 
-            Hashtable<String, String> envht = new Hashtable<String, String>();
-
-            envht.put("java.naming.factory.initial", factoryInitial);
-            envht.put("java.naming.provider.url", providerUrl);
-            envht.put("java.naming.security.authentication", securityAuthentication);
-            envht.put("java.naming.security.principal", securityPrincipal);
-            envht.put("java.naming.security.credentials", securityCredentials);
-
-            String filter = queryPrefix + userNetId + queryPostfix;
-            String base = queryBase;
-
-            InitialDirContext dirctx = new InitialDirContext(envht);
-            SearchControls sctrl = new SearchControls();
-            sctrl.setSearchScope(2);
-
-            NamingEnumeration<?> results = dirctx.search(base, filter, sctrl);
-
-            if (!results.hasMore()) {
+            UserInformation found = lookupUser(userNetId);
+            if (found == null) {
                 return false;
             }
-
-            SearchResult searchResult = (SearchResult) results.next();
-
-            String userDN = searchResult.getName() + "," + base;
-
-            envht.put("java.naming.security.principal", userDN);
-            envht.put("java.naming.security.credentials", userPwd);
-
-            dirctx = new InitialDirContext(envht);
-            return true;
+            if (cached != null && found.directoryName.equals(cached.directoryName)) {
+                // same DN, so that bind already failed
+                return false;
+            }
+            boolean result = bindAsUser(found.directoryName, userPwd);
+            searchedLogins.record(System.nanoTime() - startTime);
+            return result;
+        }
+        catch (DirectoryUnavailableException e) {
+            throw e;
         }
         catch (Exception e) {
             String msg = e.toString();
@@ -156,31 +322,235 @@ public class AuthStyleLDAP implements AuthStyle {
         return val;
     }
 
-    public UserInformation getUserInfo(String userNetId) throws Exception {
-        // return the last cached value if it is the same id
-        if (lastUserLookedUp != null && lastUserLookedUp.id.equals(userNetId)) {
-            return lastUserLookedUp;
+    private static int getIntConfigProperty(Properties configSettings, String key,
+            int defaultVal) throws Exception {
+        String val = configSettings.getProperty(key);
+        if (val == null || val.trim().length() == 0) {
+            return defaultVal;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new Exception("The setting for '" + key
+                    + "' in the configuration file must be a number, got (" + val + ")");
         }
+    }
 
-        UserInformation uret = new UserInformation();
+    /**
+     * for the periods that are handed to the scheduler, which can not run
+     * something every zero seconds
+     */
+    private static int getPositiveIntConfigProperty(Properties configSettings, String key,
+            int defaultVal) throws Exception {
+        int val = getIntConfigProperty(configSettings, key, defaultVal);
+        if (val <= 0) {
+            throw new Exception("The setting for '" + key
+                    + "' in the configuration file must be a number greater than zero, got ("
+                    + val + ")");
+        }
+        return val;
+    }
+
+    /**
+     * Binds as the user over a pooled connection. Returns false if the
+     * directory rejects the password.
+     */
+    private boolean bindAsUser(String userDN, String userPwd) throws Exception {
+        try {
+            callDirectory(userDN, userPwd, null);
+            return true;
+        }
+        catch (AuthenticationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Picks a directory server from the pool, takes a connection to it bound
+     * as the service account, and runs the call. The outcome is reported back
+     * to the pool so that a slow or failing server is avoided on later
+     * requests.
+     *
+     * The call runs on the directory thread pool, and the calling thread waits
+     * at most callTimeout for it. If the pool is full, or the wait runs out,
+     * DirectoryUnavailableException is thrown right away.
+     */
+    private <T> T callDirectory(DirectoryCall<T> call) throws Exception {
+        return callDirectory(null, null, call);
+    }
+
+    /**
+     * When a principal is passed, the connection is bound as that principal
+     * instead of the service account, and the bind itself is the work to be
+     * done, so the call is null.
+     */
+    private <T> T callDirectory(final String principal, final String credentials,
+            final DirectoryCall<T> call) throws Exception {
+        final LDAPServerPool.Server server = serverPool.pickServer();
+        long startTime = System.nanoTime();
+        DirectoryQueryEvent event = new DirectoryQueryEvent();
+        event.begin();
+        String operation = (principal != null) ? "bind" : "query";
+        String outcome = "error";
+        Future<T> future;
+        try {
+            future = directoryPool.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    LDAPConnectionPool.Connection conn = connectionPool.borrow(server.url);
+                    boolean reusable = false;
+                    try {
+                        T result = null;
+                        if (principal != null) {
+                            conn.bindAs(principal, credentials);
+                        }
+                        else {
+                            conn.bindAsService();
+                            result = call.run(conn.ctx);
+                        }
+                        reusable = true;
+                        return result;
+                    }
+                    catch (Exception e) {
+                        // a rejected bind or a missing entry leaves the
+                        // connection perfectly usable
+                        reusable = !LDAPServerPool.isServerFailure(e);
+                        throw e;
+                    }
+                    finally {
+                        if (reusable) {
+                            connectionPool.release(conn);
+                        }
+                        else {
+                            connectionPool.discard(conn);
+                        }
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            event.report(operation, server.url, "busy");
+            throw new DirectoryUnavailableException("The directory server is too busy, there are "
+                    + directoryPool.getQueue().size() + " requests already waiting for it.");
+        }
+        try {
+            T result = future.get(callTimeout, TimeUnit.MILLISECONDS);
+            serverPool.recordSuccess(server, System.nanoTime() - startTime);
+            outcome = "ok";
+            return result;
+        }
+        catch (TimeoutException e) {
+            outcome = "timeout";
+            future.cancel(true);
+            DirectoryUnavailableException due = new DirectoryUnavailableException(
+                    "The directory server " + server.url + " did not answer within "
+                            + callTimeout + "ms");
+            serverPool.recordFailure(server, System.nanoTime() - startTime, due);
+            throw due;
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (!(cause instanceof Exception)) {
+                throw ee;
+            }
+            Exception e = (Exception) cause;
+            if (LDAPServerPool.isServerFailure(e)) {
+                outcome = "unavailable";
+                serverPool.recordFailure(server, System.nanoTime() - startTime, e);
+                if (!(e instanceof DirectoryUnavailableException)) {
+                    e = new DirectoryUnavailableException("Unable to reach the directory server "
+                            + server.url, e);
+                }
+            }
+            else {
+                // the server answered, even if the answer was bad news
+                serverPool.recordSuccess(server, System.nanoTime() - startTime);
+            }
+            throw e;
+        }
+        finally {
+            event.report(operation, server.url, outcome);
+        }
+    }
 
-        String filter = queryPrefix + userNetId + queryPostfix;
-        String base = queryBase;
+    /**
+     * Called on the scheduler thread. Connects to every server with the service
+     * account, which keeps the latency figures of the servers not currently
+     * being used up to date, and puts a server that was taken out of rotation
+     * back as soon as it can be reached again. The new connection is kept in
+     * the connection pool.
+     */
+    private void probeServers() {
+        for (LDAPServerPool.Server server : serverPool.getServers()) {
+            long startTime = System.nanoTime();
+            try {
+                connectionPool.probe(server.url);
+                boolean wasDown = !server.isAvailable();
+                serverPool.recordSuccess(server, System.nanoTime() - startTime);
+                if (wasDown) {
+                    Log.info("AuthStyleLDAP: directory server " + server.url
+                            + " is back in rotation");
+                }
+            }
+            catch (Exception e) {
+                serverPool.recordFailure(server, System.nanoTime() - startTime, e);
+            }
+        }
+    }
 
-        InitialDirContext dirctx = new InitialDirContext(htLDAP);
-        SearchControls sctrl = new SearchControls();
-        sctrl.setSearchScope(2);
+    public UserInformation getUserInfo(String userNetId) throws Exception {
+        UserInformation uret = userCache.get(userNetId);
+        if (uret == null) {
+            uret = lookupUser(userNetId);
+            if (uret == null) {
+                return new UserInformation();
+            }
+        }
 
-        NamingEnumeration<SearchResult> results = dirctx.search(base, filter, sctrl);
+        if (!userNetId.equals(uret.id)) {
+            throw new Exception("Ooops, don't understand we were looking up user (" + userNetId
+                    + ") but got user (" + uret.id + ")");
+        }
+        return uret;
+    }
 
-        if (!results.hasMore()) {
-            return uret;
+    /**
+     * Search the directory for the user, and cache what was found, including
+     * the DN. Returns null if there is no such user.
+     */
+    private UserInformation lookupUser(String userNetId) throws Exception {
+        // the DN found here is the one that the password is bound as, so an
+        // id like "*" must not be able to match somebody else's entry
+        final String filter = queryPrefix + escapeFilterValue(userNetId) + queryPostfix;
+        final String base = queryBase;
+
+        UserInformation uret = callDirectory(new DirectoryCall<UserInformation>() {
+            public UserInformation run(DirContext dirctx) throws Exception {
+                SearchControls sctrl = new SearchControls();
+                sctrl.setSearchScope(2);
+
+                NamingEnumeration<SearchResult> results = dirctx.search(base, filter, sctrl);
+                if (!results.hasMore()) {
+                    return null;
+                }
+                return readUserInformation(results.next());
+            }
+        });
+        if (uret != null) {
+            userCache.put(userNetId, uret);
         }
+        return uret;
+    }
+
+    private UserInformation readUserInformation(SearchResult searchResult) throws Exception {
+        UserInformation uret = new UserInformation();
 
-        SearchResult searchResult = results.next();
         if (searchResult.getNameInNamespace() != null) {
             uret.directoryName = searchResult.getNameInNamespace();
         }
+        else {
+            uret.directoryName = searchResult.getName() + "," + queryBase;
+        }
 
         Attributes attrs = searchResult.getAttributes();
         if (attrs.get("uid") != null) {
@@ -199,25 +569,21 @@ public class AuthStyleLDAP implements AuthStyle {
             uret.emailAddress = (String) attrs.get("mail").get();
         }
         uret.fullName = firstName + " " + lastName;
-
-        if (!userNetId.equals(uret.id)) {
-            throw new Exception("Ooops, don't understand we were looking up user (" + userNetId
-                    + ") but got user (" + uret.id + ")");
-        }
-
-        lastUserLookedUp = uret;
         return uret;
     }
 
     public void setPassword(String userId, String newPwd) throws Exception {
 
-        DirContext ctx = new InitialDirContext(htLDAP);
-        ModificationItem[] mods = new ModificationItem[1];
+        final ModificationItem[] mods = new ModificationItem[1];
         mods[0] = new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(
                 "userpassword", newPwd));
-        UserInformation userInfo = getUserInfo(userId);
-        ctx.modifyAttributes(userInfo.directoryName, mods);
-        ctx.close();
+        final UserInformation userInfo = getUserInfo(userId);
+        callDirectory(new DirectoryCall<Object>() {
+            public Object run(DirContext ctx) throws Exception {
+                ctx.modifyAttributes(userInfo.directoryName, mods);
+                return null;
+            }
+        });
     }
 
     public void changePassword(String userId, String oldPwd, String newPwd) throws Exception {
@@ -226,39 +592,52 @@ public class AuthStyleLDAP implements AuthStyle {
     }
 
     public boolean isAdmin(String userId) {
-        // UserInformation userInfo = getUserInfo(userId);
-        for (String adminId : adminList) {
-            if (adminId.equals(userId)) {
-                return true;
-            }
-        }
-        return false;
+        return adminSet.contains(userId);
     }
 
-    private List<String> initAdminUserList() throws Exception {
-
-        String filter = queryPrefix + adminGroup + queryPostfix;
-        String base = queryBase;
-
-        InitialDirContext dirctx = new InitialDirContext(htLDAP);
-        SearchControls sctrl = new SearchControls();
-        sctrl.setSearchScope(2);
-
-        NamingEnumeration<SearchResult> results = dirctx.search(base, filter, sctrl);
-
-        List<String> list = new ArrayList<String>();
-        if (!results.hasMore()) {
-            return list;
+    /**
+     * Called on the scheduler thread. If the directory can not be read, the
+     * last good copy of the admin set stays in place until the next attempt.
+     */
+    private void refreshAdminSet() {
+        try {
+            adminSet = readAdminSet();
         }
-
-        SearchResult sr = results.next();
-        Attributes att = sr.getAttributes();
-        Attribute uniqueMember = att.get("uniquemember");
-        int last = uniqueMember.size() - 1;
-        for (int i = 0; i <= last; i++) {
-            list.add((String) uniqueMember.get(i));
+        catch (Exception e) {
+            Log.warn("AuthStyleLDAP: unable to refresh admin group (" + adminGroup
+                    + "), keeping previous " + adminSet.size() + " entries: " + e);
         }
-        return list;
+    }
+
+    private Set<String> readAdminSet() throws Exception {
+
+        final String filter = queryPrefix + escapeFilterValue(adminGroup) + queryPostfix;
+        final String base = queryBase;
+
+        return callDirectory(new DirectoryCall<Set<String>>() {
+            public Set<String> run(DirContext dirctx) throws Exception {
+                SearchControls sctrl = new SearchControls();
+                sctrl.setSearchScope(2);
+
+                NamingEnumeration<SearchResult> results = dirctx.search(base, filter, sctrl);
+
+                Set<String> set = new HashSet<String>();
+                if (!results.hasMore()) {
+                    return Collections.unmodifiableSet(set);
+                }
+
+                SearchResult sr = results.next();
+                Attributes att = sr.getAttributes();
+                Attribute uniqueMember = att.get("uniquemember");
+                if (uniqueMember != null) {
+                    int last = uniqueMember.size() - 1;
+                    for (int i = 0; i <= last; i++) {
+                        set.add((String) uniqueMember.get(i));
+                    }
+                }
+                return Collections.unmodifiableSet(set);
+            }
+        });
     }
 
     /*
@@ -287,12 +666,171 @@ public class AuthStyleLDAP implements AuthStyle {
         // not sure what to do here for LDAP
     }
 
+    /**
+     * Only an exact match, or the one id that matches at all, is returned. A
+     * lookup for "bob" must not quietly lead to "bobby".
+     */
     public String searchForID(String searchTerm) throws Exception {
+        List<String> candidates = searchCandidates(searchTerm);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        String best = candidates.get(0);
+        if (candidates.size() == 1 || best.equalsIgnoreCase(searchTerm.trim())) {
+            return best;
+        }
+        return null;
+    }
+
+    /**
+     * Returns up to ldapSearchLimit ids that contain the search term, best
+     * match first: an exact match, then ids starting with the term, then ids
+     * containing it, shorter ids ahead of longer ones.
+     *
+     * Ids starting with the term are searched for first, since directories
+     * can answer that from an index. Only if that does not fill the list is
+     * the more expensive substring search done.
+     */
+    public List<String> searchCandidates(String searchTerm) throws Exception {
+        final String term = searchTerm.trim();
+        final String key = term.toLowerCase(Locale.ENGLISH);
+        List<String> cached = searchCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        String escaped = escapeFilterValue(term);
+        List<String> found = new ArrayList<String>();
+        if (term.length() > 0) {
+            found = searchForIds(queryPrefix + escaped + "*" + queryPostfix, searchLimit);
+            if (found.size() < searchLimit && term.length() >= MIN_SUBSTRING_LENGTH) {
+                for (String id : searchForIds(queryPrefix + "*" + escaped + "*" + queryPostfix,
+                        searchLimit)) {
+                    if (found.size() >= searchLimit) {
+                        break;
+                    }
+                    if (!found.contains(id)) {
+                        found.add(id);
+                    }
+                }
+            }
+        }
 
-        // this is a very lame search ... it only does an EXACT match
-        // must consider a better way to search for users in the future
-        UserInformation ui = getUserInfo(searchTerm);
-        return ui.id;
+        Collections.sort(found, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int diff = rank(a) - rank(b);
+                if (diff == 0) {
+                    diff = a.length() - b.length();
+                }
+                if (diff == 0) {
+                    diff = a.compareToIgnoreCase(b);
+                }
+                return diff;
+            }
+
+            private int rank(String id) {
+                String lower = id.toLowerCase(Locale.ENGLISH);
+                if (lower.equals(key)) {
+                    return 0;
+                }
+                if (lower.startsWith(key)) {
+                    return 1;
+                }
+                return 2;
+            }
+        });
+
+        List<String> result = Collections.unmodifiableList(found);
+        searchCache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Runs the filter, a page at a time, and collects the uid of each entry
+     * until the limit is reached. Only the uid attribute is asked for.
+     */
+    private List<String> searchForIds(final String filter, final int limit) throws Exception {
+        final String base = queryBase;
+        return callDirectory(new DirectoryCall<List<String>>() {
+            public List<String> run(DirContext dirctx) throws Exception {
+                LdapContext ldapctx = (LdapContext) dirctx;
+                SearchControls sctrl = new SearchControls();
+                sctrl.setSearchScope(2);
+                sctrl.setCountLimit(limit);
+                sctrl.setReturningAttributes(new String[] { "uid" });
+
+                List<String> ids = new ArrayList<String>();
+                byte[] cookie = null;
+                try {
+                    do {
+                        ldapctx.setRequestControls(new Control[] { new PagedResultsControl(
+                                searchPageSize, cookie, Control.NONCRITICAL) });
+                        NamingEnumeration<SearchResult> results = ldapctx.search(base, filter,
+                                sctrl);
+                        try {
+                            while (ids.size() < limit && results.hasMore()) {
+                                Attribute uid = results.next().getAttributes().get("uid");
+                                if (uid != null) {
+                                    ids.add((String) uid.get());
+                                }
+                            }
+                        }
+                        catch (SizeLimitExceededException e) {
+                            // the count limit was reached, which is fine
+                            return ids;
+                        }
+                        finally {
+                            results.close();
+                        }
+                        cookie = null;
+                        Control[] responseControls = ldapctx.getResponseControls();
+                        if (responseControls != null) {
+                            for (Control c : responseControls) {
+                                if (c instanceof PagedResultsResponseControl) {
+                                    cookie = ((PagedResultsResponseControl) c).getCookie();
+                                }
+                            }
+                        }
+                    } while (ids.size() < limit && cookie != null && cookie.length > 0);
+                }
+                finally {
+                    // the connection goes back to the pool, so leave it clean
+                    ldapctx.setRequestControls(null);
+                }
+                return ids;
+            }
+        });
+    }
+
+    /**
+     * Escapes the characters that have a special meaning in an LDAP search
+     * filter (RFC 4515), so that a search term is matched literally.
+     */
+    static String escapeFilterValue(String value) {
+        StringBuffer sb = new StringBuffer(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+            case '\\':
+                sb.append("\\5c");
+                break;
+            case '*':
+                sb.append("\\2a");
+                break;
+            case '(':
+                sb.append("\\28");
+                break;
+            case ')':
+                sb.append("\\29");
+                break;
+            case '\0':
+                sb.append("\\00");
+                break;
+            default:
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
     }
 
 }
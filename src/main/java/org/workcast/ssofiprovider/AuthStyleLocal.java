@@ -20,6 +20,8 @@
 package org.workcast.ssofiprovider;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
 
@@ -29,6 +31,11 @@ import org.workcast.mendocino.Mel;
 
 /**
  * Collect all the LDAP specific functionality into this class
+ *
+ * The users file is one DOM shared by every request, and a DOM is not safe
+ * for threads, so every read or change of a user record holds the lock on
+ * this object, the same one saveUserFile holds. Password hashes are checked
+ * and made outside of the lock, since they take a long time.
  */
 public class AuthStyleLocal implements AuthStyle {
 
@@ -39,6 +46,8 @@ public class AuthStyleLocal implements AuthStyle {
     String[] overridePasswords;
     boolean makeUpUsers = false;
 
+    private static final int MAX_CANDIDATES = 20;
+
     public AuthStyleLocal(ServletContext sc, Properties configSettings) throws Exception {
 
         File webInfPath = null;
@@ -74,7 +83,7 @@ public class AuthStyleLocal implements AuthStyle {
         refreshUserInfo();
     }
 
-    public void refreshUserInfo() throws Exception {
+    public synchronized void refreshUserInfo() throws Exception {
 
         if (userFile.exists()) {
             // if the file is no newer than last time we read it, then there
@@ -111,23 +120,62 @@ public class AuthStyleLocal implements AuthStyle {
         }
 
         // handle real, encrypted case
-        User foundUser = findUserOrNull(userNetId);
-        if (foundUser != null) {
-            String storedHash = foundUser.getPassword();
-
-            // transition hack ... the encrypted versions are long, but use it
-            // as a non encrypted  password if it is short. This allows a tester
-            // to set up a file for testing.
-            // But in practice no short passwords will be created by the system
-            if (storedHash.length() < 24) {
-                return userPwd.equals(storedHash);
+        User foundUser;
+        String storedHash;
+        synchronized (this) {
+            foundUser = findUserOrNull(userNetId);
+            if (foundUser == null) {
+                return false;
             }
-            return PasswordEncrypter.check(userPwd, storedHash);
+            if (foundUser.getResetRequired()) {
+                // the old password is not accepted any more
+                return false;
+            }
+            storedHash = foundUser.getPassword();
+        }
+
+        // transition hack ... the encrypted versions are long, but use it
+        // as a non encrypted  password if it is short. This allows a tester
+        // to set up a file for testing.
+        // But in practice no short passwords will be created by the system
+        if (storedHash.length() < 24) {
+            return userPwd.equals(storedHash);
+        }
+        if (!HashingService.check(userPwd, storedHash)) {
+            return false;
         }
-        return false;
+        if (PasswordEncrypter.needsRehash(storedHash)) {
+            upgradeHashLater(userNetId, storedHash, userPwd);
+        }
+        return true;
     }
 
-    public UserInformation getUserInfo(String userNetId) throws Exception {
+    /**
+     * The stored hash was made at a lower cost than new hashes are, so
+     * replace it with a new one, now that we have the password. This is done
+     * in the background so the login does not pay for a second hash.
+     *
+     * The users file may have been read again by then, so the user is found
+     * again by id in the current one, and the hash only replaced if it is
+     * still the one that was checked.
+     */
+    private void upgradeHashLater(final String userNetId, final String oldHash, String userPwd) {
+        HashingService.rehashLater(userPwd, new HashingService.RehashReceiver() {
+            public void newHash(String newHash) throws Exception {
+                synchronized (AuthStyleLocal.this) {
+                    refreshUserInfo();
+                    User foundUser = findUserOrNull(userNetId);
+                    // skip it if the password was changed in the mean time
+                    if (foundUser != null && oldHash.equals(foundUser.getPassword())) {
+                        foundUser.setPassword(newHash);
+                        saveUserFile();
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized UserInformation getUserInfo(String userNetId) throws Exception {
         UserInformation uret = new UserInformation();
 
         User foundUser = findUserOrNull(userNetId);
@@ -154,13 +202,16 @@ public class AuthStyleLocal implements AuthStyle {
     }
 
     public void setPassword(String userId, String newPwd) throws Exception {
-        User foundUser = findUserOrNull(userId);
-        if (foundUser == null) {
-            throw new Exception("Internal consistency error: unable to find user record for: "
-                    + userId);
+        String newHash = HashingService.getSaltedHash(newPwd);
+        synchronized (this) {
+            User foundUser = findUserOrNull(userId);
+            if (foundUser == null) {
+                throw new Exception("Internal consistency error: unable to find user record for: "
+                        + userId);
+            }
+            foundUser.setNewPassword(newHash);
+            saveUserFile();
         }
-        foundUser.setPassword(PasswordEncrypter.getSaltedHash(newPwd));
-        saveUserFile();
     }
 
     private User findUserOrNull(String userNetId) {
@@ -174,7 +225,7 @@ public class AuthStyleLocal implements AuthStyle {
         return null;
     }
 
-    private void saveUserFile() throws Exception {
+    private synchronized void saveUserFile() throws Exception {
 
         users.reformatXML();
         users.writeToFile(userFile);
@@ -182,12 +233,16 @@ public class AuthStyleLocal implements AuthStyle {
     }
 
     public void changePassword(String userId, String oldPwd, String newPwd) throws Exception {
-        User foundUser = findUserOrNull(userId);
-        if (foundUser == null) {
-            throw new Exception("Internal consistency error: unable to find user record for: "
-                    + userId);
+        User foundUser;
+        String storedHash;
+        synchronized (this) {
+            foundUser = findUserOrNull(userId);
+            if (foundUser == null) {
+                throw new Exception("Internal consistency error: unable to find user record for: "
+                        + userId);
+            }
+            storedHash = foundUser.getPassword();
         }
-        String storedHash = foundUser.getPassword();
         // transition hack ... the encrypted versions are long, but use it as a
         // non encrypted
         // password if it is short. This allows a tester to set up a file for
@@ -199,17 +254,21 @@ public class AuthStyleLocal implements AuthStyle {
                         "Unable to change password to new value, because old password value did not match our records.");
             }
         }
-        else if (!PasswordEncrypter.check(oldPwd, storedHash)) {
+        else if (!HashingService.check(oldPwd, storedHash)) {
             throw new Exception(
                     "Unable to change password to new value, because old password value did not match our records.");
         }
-        foundUser.setPassword(PasswordEncrypter.getSaltedHash(newPwd));
-        saveUserFile();
+        String newHash = HashingService.getSaltedHash(newPwd);
+        synchronized (this) {
+            foundUser.setNewPassword(newHash);
+            saveUserFile();
+        }
     }
 
-    public boolean isAdmin(String userId) {
+    public synchronized boolean isAdmin(String userId) {
         User foundUser = findUserOrNull(userId);
-        return foundUser.getAdmin();
+        // users made up for an override password are never administrators
+        return foundUser != null && foundUser.getAdmin();
     }
 
     public void updateUserInfo(UserInformation userInfo, String newPwd) throws Exception {
@@ -217,6 +276,14 @@ public class AuthStyleLocal implements AuthStyle {
             throw new Exception(
                     "Local user authentication REQUIRES that the id and the email always be the same!");
         }
+        String newHash = null;
+        if (newPwd != null) {
+            newHash = HashingService.getSaltedHash(newPwd);
+        }
+        updateUserRecord(userInfo, newHash);
+    }
+
+    private synchronized void updateUserRecord(UserInformation userInfo, String newHash) throws Exception {
         User newUser = findUserOrNull(userInfo.id);
         if (newUser == null) {
             if (userInfo.exists) {
@@ -233,15 +300,15 @@ public class AuthStyleLocal implements AuthStyle {
         if (!newUser.hasEmail(userInfo.id)) {
             newUser.addAddress(userInfo.id);
         }
-        if (newPwd != null) {
-            newUser.setPassword(PasswordEncrypter.getSaltedHash(newPwd));
+        if (newHash != null) {
+            newUser.setNewPassword(newHash);
         }
         saveUserFile();
         userList.removeAllElements();
         userList.addAll(users.getChildren("user", User.class));
     }
 
-    public String searchForID(String searchTerm) throws Exception {
+    public synchronized String searchForID(String searchTerm) throws Exception {
 
         // first check if there is a user with an exact match
         for (User oneUser : userList) {
@@ -260,4 +327,21 @@ public class AuthStyleLocal implements AuthStyle {
         return null;
     }
 
+    public synchronized List<String> searchCandidates(String searchTerm) throws Exception {
+        List<String> found = new ArrayList<String>();
+        for (User oneUser : userList) {
+            if (oneUser.hasEmailMatchingSearchTerm(searchTerm)) {
+                found.add(oneUser.getEmailMatchingSearchTerm(searchTerm));
+                if (found.size() >= MAX_CANDIDATES) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    public void shutdown() {
+        // nothing running in the background for local users
+    }
+
 }
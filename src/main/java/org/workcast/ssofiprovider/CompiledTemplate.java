@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A template that has been read and split up once, so that it can be served
+ * many times without reading or scanning the file again.
+ *
+ * The template is held as literal text alternating with tokens:
+ *
+ * literal[0] token[0] literal[1] token[1] ... literal[n]
+ *
+ * where any literal may be empty. Rendering writes each literal as one chunk
+ * and asks the TemplateTokenRetriever for the value of each token. Instances
+ * never change after they are made, and can be shared by all threads.
+ *
+ * The literals are also kept encoded as UTF-8, so that a page rendered into a
+ * PageBuffer only has to encode the token values.
+ *
+ * When compiled with a list of token names, each token is also turned into
+ * its position in that list, which is passed to an IndexedTokenRetriever.
+ */
+public class CompiledTemplate {
+
+    private final String[] literals;
+    private final String[] tokens;
+    private final int[] tokenIds;
+    private final String[] tokenNames;
+    private final byte[][] literalBytes;
+    private final int literalSize;
+    private final long lastModified;
+
+    private CompiledTemplate(List<String> literalList, List<String> tokenList,
+            List<Integer> idList, String[] tokenNames, long lastModified) {
+        literals = literalList.toArray(new String[literalList.size()]);
+        tokens = tokenList.toArray(new String[tokenList.size()]);
+        if (tokenNames == null) {
+            tokenIds = null;
+        }
+        else {
+            tokenIds = new int[idList.size()];
+            for (int i = 0; i < tokenIds.length; i++) {
+                tokenIds[i] = idList.get(i).intValue();
+            }
+        }
+        this.tokenNames = tokenNames;
+        literalBytes = new byte[literals.length][];
+        int size = 0;
+        for (int i = 0; i < literals.length; i++) {
+            literalBytes[i] = literals[i].getBytes(utf8);
+            size += literalBytes[i].length;
+        }
+        literalSize = size;
+        this.lastModified = lastModified;
+    }
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    /**
+     * Reads the whole template, splitting it at the {{token}} markers. See
+     * TemplateStreamer for the syntax. Mistakes in the template, such as a
+     * token that is not closed, are reported here with the line number.
+     *
+     * If tokenNames is given, every token must be one of those names, and is
+     * rendered with its position in that array. If it is null, any token is
+     * allowed and is passed by name.
+     */
+    public static CompiledTemplate compile(Reader template, long lastModified,
+            String[] tokenNames) throws Exception {
+        StringBuffer text = new StringBuffer();
+        char[] buf = new char[4096];
+        int amt = template.read(buf);
+        while (amt >= 0) {
+            text.append(buf, 0, amt);
+            amt = template.read(buf);
+        }
+
+        List<String> literalList = new ArrayList<String>();
+        List<String> tokenList = new ArrayList<String>();
+        List<Integer> idList = new ArrayList<Integer>();
+        int literalStart = 0;
+        int pos = text.indexOf("{{");
+        while (pos >= 0) {
+            int tokenEnd = text.indexOf("}", pos + 2);
+            if (tokenEnd < 0) {
+                throw new Exception("Problem with template token starting on line "
+                        + lineOf(text, pos) + ": template ended before finding a closing "
+                        + "brace character");
+            }
+            if (tokenEnd + 1 >= text.length() || text.charAt(tokenEnd + 1) != '}') {
+                throw new Exception("Problem with template token starting on line "
+                        + lineOf(text, pos) + ": found one, but did not find the second "
+                        + "closing brace character");
+            }
+            String token = text.substring(pos + 2, tokenEnd);
+            if (tokenNames != null) {
+                int id = indexOf(tokenNames, token);
+                if (id < 0) {
+                    throw new Exception("Problem with template token starting on line "
+                            + lineOf(text, pos) + ": there is no token named '" + token + "'");
+                }
+                idList.add(Integer.valueOf(id));
+            }
+            literalList.add(text.substring(literalStart, pos));
+            tokenList.add(token);
+            literalStart = tokenEnd + 2;
+            pos = text.indexOf("{{", literalStart);
+        }
+        literalList.add(text.substring(literalStart));
+        return new CompiledTemplate(literalList, tokenList, idList, tokenNames, lastModified);
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lineOf(StringBuffer text, int pos) {
+        int line = 0;
+        for (int i = 0; i < pos; i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Writes the template to out, with the token values filled in by ttr
+     */
+    public void render(Writer out, TemplateTokenRetriever ttr) throws Exception {
+        for (int i = 0; i < tokens.length; i++) {
+            out.write(literals[i]);
+            writeToken(out, ttr, i);
+        }
+        out.write(literals[tokens.length]);
+    }
+
+    /**
+     * Renders the page as UTF-8 into a buffer. The literals are copied in as
+     * they are, only the token values are encoded.
+     */
+    public void render(PageBuffer page, TemplateTokenRetriever ttr) throws Exception {
+        Writer out = page.getWriter();
+        for (int i = 0; i < tokens.length; i++) {
+            page.write(literalBytes[i], 0, literalBytes[i].length);
+            writeToken(out, ttr, i);
+        }
+        byte[] last = literalBytes[tokens.length];
+        page.write(last, 0, last.length);
+        out.close();
+    }
+
+    private void writeToken(Writer out, TemplateTokenRetriever ttr, int i) throws Exception {
+        if (tokenIds != null && ttr instanceof IndexedTokenRetriever) {
+            ((IndexedTokenRetriever) ttr).writeTokenValue(out, tokenIds[i]);
+        }
+        else {
+            ttr.writeTokenValue(out, tokens[i]);
+        }
+    }
+
+    /**
+     * the token names this template was compiled with, or null
+     */
+    public String[] getTokenNames() {
+        return tokenNames;
+    }
+
+    /**
+     * a good starting size for a PageBuffer for this template
+     */
+    public int getSizeHint() {
+        return literalSize + 256 + literalSize / 4;
+    }
+
+    /**
+     * the modification time of the file when it was compiled
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for checking a password with the AuthStyle. The time
+ * includes any directory calls and the password hashing. See SessionEvent for
+ * how these are used.
+ */
+@Name("org.workcast.ssofi.CredentialCheck")
+@Label("Credential Check")
+@Category("SSOFI")
+@Description("Checking a user id and password with the configured auth style")
+final class CredentialCheckEvent extends jdk.jfr.Event {
+
+    @Label("Mode")
+    @Description("The openid.mode of the request")
+    String mode;
+
+    @Label("Auth Style")
+    String authStyle;
+
+    @Label("Outcome")
+    @Description("accepted, rejected, or error")
+    String outcome;
+
+    void report(String mode, String authStyle, String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.mode = mode;
+            this.authStyle = authStyle;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
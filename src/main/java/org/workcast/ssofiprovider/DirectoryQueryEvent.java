@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for one call to the LDAP directory, from the request
+ * thread's point of view, so the time includes waiting for a directory
+ * thread and a connection. See SessionEvent for how these are used.
+ */
+@Name("org.workcast.ssofi.DirectoryQuery")
+@Label("Directory Query")
+@Category("SSOFI")
+@Description("A call to the LDAP directory")
+final class DirectoryQueryEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    @Description("bind to check a password, or query as the service account")
+    String operation;
+
+    @Label("Server")
+    String server;
+
+    @Label("Outcome")
+    @Description("ok, busy, timeout, unavailable, or error")
+    String outcome;
+
+    void report(String operation, String server, String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.server = server;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+/**
+ * Thrown when the directory server can not be used right now: every server
+ * is out of rotation, the directory did not answer in time, or too many
+ * requests are already waiting on it. This is not a problem with the request
+ * itself, so the user gets a "try again later" page instead of an error.
+ */
+@SuppressWarnings("serial")
+public class DirectoryUnavailableException extends Exception {
+
+    public DirectoryUnavailableException(String msg) {
+        super(msg);
+    }
+
+    public DirectoryUnavailableException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
@@ -99,6 +99,10 @@ public class EmailHandler {
     }
 
     public void sendEmail(String emailId, int reqType, String magicNumber) throws Exception {
+        EmailSendEvent event = new EmailSendEvent();
+        event.begin();
+        long bytes = 0;
+        boolean ok = false;
         try {
 
             Properties props = new Properties();
@@ -155,12 +159,17 @@ public class EmailHandler {
             Multipart mp = new MimeMultipart();
             mp.addBodyPart(textPart);
             message.setContent(mp);
+            bytes = clone.getBuffer().length();
             Transport.send(message);
+            ok = true;
 
         }
         catch (Exception e) {
             throw new RuntimeException("Unable to send an email message for (" + emailId + ")", e);
         }
+        finally {
+            event.report(reqType == RESET_PASSWORD ? "reset" : "register", bytes, ok);
+        }
 
     }
 
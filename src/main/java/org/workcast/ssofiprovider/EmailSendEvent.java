@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for sending a confirmation email through SMTP. See
+ * SessionEvent for how these are used.
+ */
+@Name("org.workcast.ssofi.EmailSend")
+@Label("Email Send")
+@Category("SSOFI")
+@Description("Sending an email message")
+final class EmailSendEvent extends jdk.jfr.Event {
+
+    @Label("Kind")
+    @Description("register or reset")
+    String kind;
+
+    @Label("Bytes")
+    @Description("Size of the message body")
+    @DataAmount
+    long bytes;
+
+    @Label("Outcome")
+    String outcome;
+
+    void report(String kind, long bytes, boolean ok) {
+        end();
+        if (shouldCommit()) {
+            this.kind = kind;
+            this.bytes = bytes;
+            this.outcome = ok ? "ok" : "error";
+            commit();
+        }
+    }
+}
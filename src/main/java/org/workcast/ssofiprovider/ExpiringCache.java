@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small in-memory cache that holds at most a fixed number of entries, and
+ * forgets each entry a fixed time after it was put in. When full, the entry
+ * used least recently is dropped to make room.
+ *
+ * All methods are synchronized; the cache is meant for small values that are
+ * expensive to look up, so the lock is held only for the map operation.
+ */
+public class ExpiringCache<K, V> {
+
+    private static class Item<V> {
+        final V value;
+        final long expires;
+
+        Item(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final LinkedHashMap<K, Item<V>> map;
+    private final long timeToLive;
+
+    /**
+     * @param maxEntries
+     *            most entries held at one time
+     * @param timeToLiveMillis
+     *            how long an entry stays valid after it is put in the cache
+     */
+    public ExpiringCache(final int maxEntries, long timeToLiveMillis) {
+        timeToLive = timeToLiveMillis;
+        map = new LinkedHashMap<K, Item<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * returns the cached value, or null if there is none or it has expired
+     */
+    public synchronized V get(K key) {
+        Item<V> e = map.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (e.expires < System.currentTimeMillis()) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        map.put(key, new Item<V>(value, System.currentTimeMillis() + timeToLive));
+    }
+
+    public synchronized void remove(K key) {
+        map.remove(key);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * Drops all expired entries. Expired entries are also dropped when they
+     * are asked for, so this is only needed to free the memory sooner.
+     */
+    public synchronized void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Item<V>> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expires < now) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.server.ServerAssociationStore;
+
+/**
+ * Keeps OpenID associations as files in a folder that all the servers of a
+ * cluster share, so that an association made on one server can be used to
+ * sign or verify on any other. openid4java's own store keeps them in memory,
+ * and makes handles from the time and a counter, which two servers can
+ * easily both come up with.
+ *
+ * Files are kept in one folder for each ten minutes of expiry time, and the
+ * name of that folder is the start of the handle. That way a handle leads
+ * straight to its file, and expired associations are cleaned up by deleting
+ * whole folders without reading anything.
+ *
+ * Associations that have been read are also kept in memory, but a file
+ * still has to be there for its association to be used, since another
+ * server may have removed it. Checking that a file exists is much cheaper
+ * than reading it.
+ */
+public class FileAssociationStore implements ServerAssociationStore {
+
+    private static final long BUCKET_MILLIS = 600000;
+    private static final long CLEANUP_MILLIS = 60000;
+    private static final int MAX_CACHED = 10000;
+
+    private final File folder;
+    private final ConcurrentHashMap<String, Association> cache =
+            new ConcurrentHashMap<String, Association>();
+    private volatile long nextCleanup = 0;
+
+    public FileAssociationStore(File folder) throws Exception {
+        if (!folder.exists() && !folder.mkdirs() && !folder.exists()) {
+            throw new Exception("Unable to create the association folder (" + folder + ")");
+        }
+        this.folder = folder;
+    }
+
+    public Association generate(String type, int expiryIn) throws AssociationException {
+        cleanupIfDue();
+        long expiry = System.currentTimeMillis() + expiryIn * 1000L;
+        String handle = (expiry / BUCKET_MILLIS) + "-" + RandomSource.newLetters(24);
+        Association association = Association.generate(type, handle, expiryIn);
+        try {
+            write(association);
+        }
+        catch (Exception e) {
+            throw new AssociationException("Unable to store association " + handle + ": " + e);
+        }
+        cache.put(handle, association);
+        return association;
+    }
+
+    public Association load(String handle) {
+        File file = fileFor(handle);
+        if (file == null) {
+            return null;
+        }
+        if (!file.exists()) {
+            cache.remove(handle);
+            return null;
+        }
+        Association association = cache.get(handle);
+        if (association == null) {
+            try {
+                association = read(handle, file);
+            }
+            catch (Exception e) {
+                Log.warn("FileAssociationStore: unable to read association " + handle + ": " + e);
+                return null;
+            }
+            if (cache.size() >= MAX_CACHED) {
+                removeExpiredFromCache();
+            }
+            if (cache.size() < MAX_CACHED) {
+                cache.put(handle, association);
+            }
+        }
+        if (association.hasExpired()) {
+            remove(handle);
+            return null;
+        }
+        return association;
+    }
+
+    public void remove(String handle) {
+        File file = fileFor(handle);
+        if (file != null) {
+            cache.remove(handle);
+            file.delete();
+        }
+    }
+
+    /**
+     * The file for a handle, or null if the handle is not one made here. The
+     * handle comes straight from the request, so it must not be able to name
+     * any other file.
+     */
+    private File fileFor(String handle) {
+        if (handle == null) {
+            return null;
+        }
+        int dash = handle.indexOf('-');
+        if (dash <= 0 || dash == handle.length() - 1) {
+            return null;
+        }
+        for (int i = 0; i < handle.length(); i++) {
+            char ch = handle.charAt(i);
+            if (i < dash && (ch < '0' || ch > '9')) {
+                return null;
+            }
+            if (i > dash && (ch < 'A' || ch > 'Z')) {
+                return null;
+            }
+        }
+        return new File(new File(folder, handle.substring(0, dash)), handle + ".assoc");
+    }
+
+    private void write(Association association) throws Exception {
+        File file = fileFor(association.getHandle());
+        File bucket = file.getParentFile();
+        if (!bucket.exists() && !bucket.mkdirs() && !bucket.exists()) {
+            throw new Exception("unable to create folder " + bucket);
+        }
+        File tempFile = new File(bucket, association.getHandle() + ".$temp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(fileOut);
+            byte[] key = association.getMacKey().getEncoded();
+            out.writeUTF(association.getType());
+            out.writeLong(association.getExpiry().getTime());
+            out.writeInt(key.length);
+            out.write(key);
+            out.flush();
+        }
+        finally {
+            fileOut.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new Exception("unable to rename " + tempFile);
+        }
+    }
+
+    private Association read(String handle, File file) throws Exception {
+        FileInputStream fileIn = new FileInputStream(file);
+        try {
+            DataInputStream in = new DataInputStream(fileIn);
+            String type = in.readUTF();
+            Date expiry = new Date(in.readLong());
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            if (Association.TYPE_HMAC_SHA1.equals(type)) {
+                return Association.createHmacSha1(handle, key, expiry);
+            }
+            if (Association.TYPE_HMAC_SHA256.equals(type)) {
+                return Association.createHmacSha256(handle, key, expiry);
+            }
+            throw new Exception("unknown association type " + type);
+        }
+        finally {
+            fileIn.close();
+        }
+    }
+
+    /**
+     * At most once a minute, on whichever server gets there first, deletes the
+     * folders of associations that have all expired.
+     */
+    private void cleanupIfDue() {
+        long now = System.currentTimeMillis();
+        if (now < nextCleanup) {
+            return;
+        }
+        nextCleanup = now + CLEANUP_MILLIS;
+        long currentBucket = now / BUCKET_MILLIS;
+        File[] buckets = folder.listFiles();
+        if (buckets == null) {
+            return;
+        }
+        for (File bucket : buckets) {
+            long bucketNumber;
+            try {
+                bucketNumber = Long.parseLong(bucket.getName());
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            // everything in a bucket expires before the next one starts
+            if (bucketNumber < currentBucket) {
+                File[] children = bucket.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        child.delete();
+                    }
+                }
+                bucket.delete();
+            }
+        }
+        removeExpiredFromCache();
+    }
+
+    private void removeExpiredFromCache() {
+        Iterator<Association> it = cache.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().hasExpired()) {
+                it.remove();
+            }
+        }
+    }
+}
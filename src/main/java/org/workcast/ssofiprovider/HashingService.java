@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the password hashing of PasswordEncrypter on a fixed pool of threads,
+ * one per processor core, instead of on the servlet threads.
+ *
+ * Hashing is deliberately slow and uses a full core while it runs. With its
+ * own pool, a burst of logins can only keep the cores busy, and the servlet
+ * threads stay free to serve pages. Requests that can not be started right
+ * away wait in a short queue; when that is full the login is turned away at
+ * once with a "try again" message rather than waiting behind everyone else.
+ *
+ * Like AddressParser, this is set up once with initialize() and used through
+ * static methods. Before initialize() is called, hashing is simply done on
+ * the calling thread, which is what command line tools want.
+ */
+public class HashingService {
+
+    private static ThreadPoolExecutor pool = null;
+
+    private static final LatencyCounter queueWait = new LatencyCounter();
+    private static final LatencyCounter hashTime = new LatencyCounter();
+    private static final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Reads hashThreads (default: number of cores) and hashQueueSize
+     * (default: 4 per thread) from the configuration. Also times the hash on
+     * this machine so that new hashes take about hashTargetMillis (default
+     * 100) but use at least hashMinIterations (default 10000).
+     */
+    public static synchronized void initialize(Properties configSettings) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = getIntSetting(configSettings, "hashThreads", cores);
+        int queueSize = getIntSetting(configSettings, "hashQueueSize", threads * 4);
+        int targetMillis = getIntSetting(configSettings, "hashTargetMillis", 100);
+        int minIterations = getIntSetting(configSettings, "hashMinIterations", 10000);
+        int iterations = PasswordEncrypter.calibrate(targetMillis, minIterations);
+        Log.info("SSOFI: new password hashes use " + PasswordEncrypter.getAlgorithm()
+                + " with " + iterations + " iterations");
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("SSOFI-hash"));
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Same as PasswordEncrypter.getSaltedHash, but run on the hashing pool
+     */
+    public static String getSaltedHash(final String password) throws Exception {
+        return runHash(new Callable<String>() {
+            public String call() throws Exception {
+                return PasswordEncrypter.getSaltedHash(password);
+            }
+        });
+    }
+
+    /**
+     * Same as PasswordEncrypter.check, but run on the hashing pool
+     */
+    public static boolean check(final String password, final String stored) throws Exception {
+        return runHash(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return PasswordEncrypter.check(password, stored);
+            }
+        }).booleanValue();
+    }
+
+    /**
+     * Computes a new hash of a password in the background, and hands it to
+     * the receiver when done. This is for upgrading a stored hash after a
+     * successful login, so it is only done when the pool has room, and simply
+     * skipped otherwise: the next login will try again.
+     */
+    public static void rehashLater(final String password, final RehashReceiver receiver) {
+        ThreadPoolExecutor thePool = pool;
+        if (thePool == null || thePool.getQueue().size() > 0) {
+            // never make a login wait behind an upgrade
+            return;
+        }
+        try {
+            thePool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        long startTime = System.nanoTime();
+                        String newHash = PasswordEncrypter.getSaltedHash(password);
+                        hashTime.record(System.nanoTime() - startTime);
+                        receiver.newHash(newHash);
+                    }
+                    catch (Exception e) {
+                        Log.warn("SSOFI: unable to upgrade a password hash: " + e);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // busy, leave it for another time
+        }
+    }
+
+    /**
+     * Gets the result of rehashLater
+     */
+    public interface RehashReceiver {
+        public void newHash(String newHash) throws Exception;
+    }
+
+    private static <T> T runHash(final Callable<T> work) throws Exception {
+        ThreadPoolExecutor thePool = pool;
+        if (thePool == null) {
+            long startTime = System.nanoTime();
+            T result = work.call();
+            long elapsed = System.nanoTime() - startTime;
+            hashTime.record(elapsed);
+            RequestTimer.addToCurrent(RequestTimer.Phase.hash, elapsed);
+            return result;
+        }
+
+        final long submitTime = System.nanoTime();
+        Future<T> future;
+        try {
+            future = thePool.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    long startTime = System.nanoTime();
+                    queueWait.record(startTime - submitTime);
+                    try {
+                        return work.call();
+                    }
+                    finally {
+                        hashTime.record(System.nanoTime() - startTime);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new Exception("The server is very busy checking passwords at the moment.  "
+                    + "Please try again in a few seconds.");
+        }
+        try {
+            return future.get();
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ee;
+        }
+        finally {
+            // the request waited for the queue as well as the hashing
+            RequestTimer.addToCurrent(RequestTimer.Phase.hash, System.nanoTime() - submitTime);
+        }
+    }
+
+    /**
+     * time between a hash being asked for and a pool thread starting on it
+     */
+    public static LatencyCounter getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * time spent actually computing hashes
+     */
+    public static LatencyCounter getHashTime() {
+        return hashTime;
+    }
+
+    /**
+     * number of hash requests turned away because the queue was full
+     */
+    public static long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public static int getQueueLength() {
+        ThreadPoolExecutor thePool = pool;
+        if (thePool == null) {
+            return 0;
+        }
+        return thePool.getQueue().size();
+    }
+
+    private static int getIntSetting(Properties configSettings, String key, int defaultVal)
+            throws Exception {
+        String val = configSettings.getProperty(key);
+        if (val == null || val.trim().length() == 0) {
+            return defaultVal;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new Exception("The setting for '" + key
+                    + "' in the configuration file must be a number, got (" + val + ")");
+        }
+    }
+}
@@ -27,7 +27,7 @@ import java.util.Vector;
  *
  * (1) generates an alphanumeric id based on timestamp
  *
- * (2) generates a four digit timestamp unique within a set
+ * (2) generates a random four digit id unique within a set
  *
  */
 public class IdGenerator {
@@ -63,7 +63,7 @@ public class IdGenerator {
      */
     public synchronized static String generateFourDigit(Vector<String> existingIds)
             throws Exception {
-        int seed = (int) (System.currentTimeMillis() % 10000);
+        int seed = RandomSource.nextInt(10000);
         int spin = seed;
         String id = fourDigitConvert(seed);
         while (idAlreadyExists(existingIds, id)) {
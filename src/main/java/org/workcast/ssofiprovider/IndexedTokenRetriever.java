@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.Writer;
+
+/**
+ * A TemplateTokenRetriever that knows the full set of tokens it can handle
+ * ahead of time. Templates compiled with that list of names have each token
+ * looked up once, when compiled, and any name not in the list is reported
+ * as an error then. While rendering, the retriever is given the position of
+ * the token in the list, so it can pick the value with a switch instead of
+ * comparing strings.
+ */
+public interface IndexedTokenRetriever extends TemplateTokenRetriever {
+
+    /**
+     * Write the value for the token whose name is at position tokenId in
+     * the list of token names the template was compiled with.
+     */
+    public void writeTokenValue(Writer out, int tokenId) throws Exception;
+
+}
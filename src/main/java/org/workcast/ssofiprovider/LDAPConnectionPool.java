@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+
+/**
+ * Keeps open connections to the directory servers so that a request does not
+ * have to set up a new TCP (and TLS) connection every time.
+ *
+ * A connection can be bound as the service account, for searching, or as a
+ * user, to check a password. Switching between the two is done with a new
+ * bind over the same connection (LdapContext.reconnect re-authenticates an
+ * LDAPv3 connection in place), so a login is a single bind round trip.
+ *
+ * When ldaps: urls are configured, the pooled connections are SSL
+ * connections. When startTLS is set, every connection is upgraded with the
+ * StartTLS extended operation before anything is sent, and stays encrypted
+ * for as long as it is pooled. JNDI's own connection pooling is not used
+ * because it does not support StartTLS and can not rebind a connection.
+ */
+public class LDAPConnectionPool {
+
+    /**
+     * A single open connection to one directory server
+     */
+    public class Connection {
+        final String url;
+        final LdapContext ctx;
+        private final StartTlsResponse tls;
+
+        /**
+         * the principal the connection is currently authenticated as, or null
+         * if the last bind failed
+         */
+        private String boundAs;
+        long lastUsed;
+
+        Connection(String url) throws NamingException {
+            this.url = url;
+            if (startTLS) {
+                // connect without credentials, then upgrade the connection
+                // before the password is ever sent
+                ctx = new InitialLdapContext(environmentFor(url, null, null), null);
+                try {
+                    tls = (StartTlsResponse) ctx.extendedOperation(new StartTlsRequest());
+                    tls.negotiate();
+                }
+                catch (Exception e) {
+                    ctx.close();
+                    NamingException ne = new NamingException("Unable to start TLS with " + url);
+                    ne.setRootCause(e);
+                    throw ne;
+                }
+                try {
+                    bindAs(servicePrincipal, serviceCredentials);
+                }
+                catch (NamingException e) {
+                    close();
+                    throw e;
+                }
+            }
+            else {
+                ctx = new InitialLdapContext(environmentFor(url, servicePrincipal,
+                        serviceCredentials), null);
+                tls = null;
+                boundAs = servicePrincipal;
+            }
+        }
+
+        /**
+         * Authenticate this connection as the given principal. Always sends a
+         * bind, even when already bound as that principal, because for a user
+         * the bind is the password check.
+         */
+        public void bindAs(String principal, String credentials) throws NamingException {
+            boundAs = null;
+            ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, securityAuthentication);
+            ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+            ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+            ctx.reconnect(null);
+            boundAs = principal;
+        }
+
+        /**
+         * make sure the connection is authenticated as the service account,
+         * binding again only if a user was bound on it last
+         */
+        public void bindAsService() throws NamingException {
+            if (!servicePrincipal.equals(boundAs)) {
+                bindAs(servicePrincipal, serviceCredentials);
+            }
+        }
+
+        void close() {
+            try {
+                if (tls != null) {
+                    tls.close();
+                }
+            }
+            catch (Exception e) {
+                // closing anyway
+            }
+            try {
+                ctx.close();
+            }
+            catch (Exception e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private final String factoryInitial;
+    private final String securityAuthentication;
+    private final String servicePrincipal;
+    private final String serviceCredentials;
+    private final boolean startTLS;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxIdle;
+    private final long idleMillis;
+
+    private final ConcurrentHashMap<String, LinkedBlockingDeque<Connection>> idle =
+            new ConcurrentHashMap<String, LinkedBlockingDeque<Connection>>();
+
+    public LDAPConnectionPool(String factoryInitial, String securityAuthentication,
+            String servicePrincipal, String serviceCredentials, boolean startTLS,
+            int connectTimeout, int readTimeout, int maxIdle, long idleMillis) {
+        this.factoryInitial = factoryInitial;
+        this.securityAuthentication = securityAuthentication;
+        this.servicePrincipal = servicePrincipal;
+        this.serviceCredentials = serviceCredentials;
+        this.startTLS = startTLS;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxIdle = maxIdle;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Returns an open connection to the server, either one that was pooled or
+     * a new one bound as the service account. Hand it back with release()
+     * when done, or with discard() if something went wrong with it.
+     */
+    public Connection borrow(String url) throws NamingException {
+        LinkedBlockingDeque<Connection> queue = idleQueue(url);
+        long oldest = System.currentTimeMillis() - idleMillis;
+        Connection conn = queue.pollFirst();
+        while (conn != null) {
+            if (conn.lastUsed >= oldest) {
+                return conn;
+            }
+            // idle too long, the server may well have dropped it already
+            conn.close();
+            conn = queue.pollFirst();
+        }
+        return new Connection(url);
+    }
+
+    public void release(Connection conn) {
+        conn.lastUsed = System.currentTimeMillis();
+        // most recently used at the front, so the ones at the back age out
+        LinkedBlockingDeque<Connection> queue = idleQueue(conn.url);
+        while (!queue.offerFirst(conn)) {
+            Connection oldest = queue.pollLast();
+            if (oldest != null) {
+                oldest.close();
+            }
+        }
+    }
+
+    public void discard(Connection conn) {
+        conn.close();
+    }
+
+    /**
+     * Opens a new connection to the server and, if that works, adds it to the
+     * pool. Used by the background probe, so that a server coming back into
+     * rotation already has a warm connection.
+     */
+    public void probe(String url) throws NamingException {
+        release(new Connection(url));
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (LinkedBlockingDeque<Connection> queue : idle.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public void closeAll() {
+        for (LinkedBlockingDeque<Connection> queue : idle.values()) {
+            Connection conn = queue.pollFirst();
+            while (conn != null) {
+                conn.close();
+                conn = queue.pollFirst();
+            }
+        }
+    }
+
+    private LinkedBlockingDeque<Connection> idleQueue(String url) {
+        LinkedBlockingDeque<Connection> queue = idle.get(url);
+        if (queue == null) {
+            idle.putIfAbsent(url, new LinkedBlockingDeque<Connection>(maxIdle));
+            queue = idle.get(url);
+        }
+        return queue;
+    }
+
+    private Hashtable<String, String> environmentFor(String url, String principal,
+            String credentials) {
+        Hashtable<String, String> envht = new Hashtable<String, String>();
+        envht.put(Context.INITIAL_CONTEXT_FACTORY, factoryInitial);
+        envht.put(Context.PROVIDER_URL, url);
+        if (principal == null) {
+            envht.put(Context.SECURITY_AUTHENTICATION, "none");
+        }
+        else {
+            envht.put(Context.SECURITY_AUTHENTICATION, securityAuthentication);
+            envht.put(Context.SECURITY_PRINCIPAL, principal);
+            envht.put(Context.SECURITY_CREDENTIALS, credentials);
+        }
+        envht.put("com.sun.jndi.ldap.connect.timeout", Integer.toString(connectTimeout));
+        envht.put("com.sun.jndi.ldap.read.timeout", Integer.toString(readTimeout));
+        return envht;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+/**
+ * Keeps track of the health of each of the configured directory servers and
+ * picks the best one for the next request.
+ *
+ * For every server a moving average of the response time and of the error
+ * rate is kept. The server with the lowest score is chosen, where the score is
+ * the average latency penalized by the error rate. When all servers are
+ * equally good, the first one in the configured list is used, so the order of
+ * the list expresses a preference.
+ *
+ * Each server also has a simple circuit breaker: after a number of failures
+ * in a row the server is taken out of rotation. It is only put back when a
+ * background probe (see AuthStyleLDAP) succeeds in connecting to it.
+ */
+public class LDAPServerPool {
+
+    /**
+     * weight of the newest sample in the moving averages
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * how heavily a recent history of errors counts against a server
+     */
+    private static final double ERROR_PENALTY = 10.0;
+
+    /**
+     * assumed latency of a server that has not answered yet, so that a server
+     * with nothing but failures does not score as infinitely fast
+     */
+    private static final double INITIAL_LATENCY_MILLIS = 100.0;
+
+    public static class Server {
+        public final String url;
+
+        private double avgLatencyMillis = INITIAL_LATENCY_MILLIS;
+        private boolean measured = false;
+        private double errorRate = 0;
+        private int consecutiveFailures = 0;
+        private boolean open = false;
+
+        Server(String url) {
+            this.url = url;
+        }
+
+        synchronized double score() {
+            return avgLatencyMillis * (1.0 + ERROR_PENALTY * errorRate);
+        }
+
+        public synchronized boolean isAvailable() {
+            return !open;
+        }
+
+        public synchronized double getAverageLatencyMillis() {
+            return avgLatencyMillis;
+        }
+
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        synchronized void success(long elapsedNanos) {
+            double millis = elapsedNanos / 1000000.0;
+            if (!measured) {
+                avgLatencyMillis = millis;
+                measured = true;
+            }
+            else {
+                avgLatencyMillis = ALPHA * millis + (1 - ALPHA) * avgLatencyMillis;
+            }
+            errorRate = (1 - ALPHA) * errorRate;
+            consecutiveFailures = 0;
+            open = false;
+        }
+
+        /**
+         * The time spent on a failure counts as latency too, a timeout most of
+         * all, but a quick failure never makes the server look faster.
+         */
+        synchronized boolean failure(long elapsedNanos, int threshold) {
+            double millis = elapsedNanos / 1000000.0;
+            if (millis > avgLatencyMillis) {
+                avgLatencyMillis = ALPHA * millis + (1 - ALPHA) * avgLatencyMillis;
+            }
+            errorRate = ALPHA + (1 - ALPHA) * errorRate;
+            consecutiveFailures++;
+            if (!open && consecutiveFailures >= threshold) {
+                open = true;
+                return true;
+            }
+            return false;
+        }
+
+        public String toString() {
+            synchronized (this) {
+                return url + (open ? " (DOWN)" : "") + " avg=" + Math.round(avgLatencyMillis)
+                        + "ms errors=" + Math.round(errorRate * 100) + "%";
+            }
+        }
+    }
+
+    private final List<Server> servers;
+    private final int failureThreshold;
+
+    /**
+     * @param urlList
+     *            one or more LDAP urls separated by spaces or commas, in order of
+     *            preference
+     * @param failureThreshold
+     *            number of failures in a row that take a server out of rotation
+     */
+    public LDAPServerPool(String urlList, int failureThreshold) throws Exception {
+        List<Server> list = new ArrayList<Server>();
+        for (String url : urlList.trim().split("[\\s,]+")) {
+            if (url.length() > 0) {
+                list.add(new Server(url));
+            }
+        }
+        if (list.isEmpty()) {
+            throw new Exception("No LDAP server url found in the setting (" + urlList + ")");
+        }
+        servers = Collections.unmodifiableList(list);
+        this.failureThreshold = failureThreshold;
+    }
+
+    public List<Server> getServers() {
+        return servers;
+    }
+
+    /**
+     * Returns the healthiest server that is currently in rotation. If every
+     * server has been taken out of rotation, an exception is thrown right away
+     * instead of waiting on servers that are known to be down.
+     */
+    public Server pickServer() throws Exception {
+        Server best = null;
+        double bestScore = 0;
+        for (Server s : servers) {
+            if (!s.isAvailable()) {
+                continue;
+            }
+            double score = s.score();
+            if (best == null || score < bestScore) {
+                best = s;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            throw new DirectoryUnavailableException(
+                    "None of the directory servers are available at this time: " + servers);
+        }
+        return best;
+    }
+
+    public void recordSuccess(Server s, long elapsedNanos) {
+        s.success(elapsedNanos);
+    }
+
+    public void recordFailure(Server s, long elapsedNanos, Exception e) {
+        if (s.failure(elapsedNanos, failureThreshold)) {
+            Log.warn("LDAPServerPool: taking directory server " + s.url
+                    + " out of rotation after " + failureThreshold + " failures: " + e);
+        }
+    }
+
+    /**
+     * Decides whether an exception means that the server itself is in trouble
+     * as opposed to an ordinary result like a bad password or a missing entry.
+     */
+    public static boolean isServerFailure(Exception e) {
+        if (e instanceof CommunicationException || e instanceof ServiceUnavailableException) {
+            return true;
+        }
+        if (e instanceof DirectoryUnavailableException) {
+            return true;
+        }
+        if (e instanceof NamingException) {
+            if (((NamingException) e).getRootCause() instanceof IOException) {
+                return true;
+            }
+            // the JDK reports an expired read timeout as a plain
+            // NamingException, the message is the only way to tell
+            String msg = e.getMessage();
+            return msg != null && msg.contains("timed out");
+        }
+        return false;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many times something happened and how long it took in total
+ * and at most. Recording does not take any lock, so it is cheap enough to
+ * call on every request.
+ */
+public class LatencyCounter {
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long elapsedNanos) {
+        count.incrementAndGet();
+        totalNanos.addAndGet(elapsedNanos);
+        long max = maxNanos.get();
+        while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getAverageMillis() {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        return totalNanos.get() / (c * 1000000.0);
+    }
+
+    /**
+     * something like "12 calls, avg 3.4ms, max 20.1ms" for log output
+     */
+    public String toString() {
+        return count.get() + " calls, avg " + Math.round(getAverageMillis() * 10) / 10.0
+                + "ms, max " + Math.round(maxNanos.get() / 100000.0) / 10.0 + "ms";
+    }
+}
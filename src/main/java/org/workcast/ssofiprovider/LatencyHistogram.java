@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyCounter that also keeps how many times fell into each of a fixed
+ * set of buckets, so that the spread can be reported and not just the
+ * average. The buckets go up in 1, 2.5, 5 steps from a tenth of a
+ * millisecond to ten seconds, and are the same for every histogram so that
+ * they can be added up across servers. Recording is a binary search over a
+ * few bounds and atomic increments, no lock and no allocation.
+ */
+public class LatencyHistogram extends LatencyCounter {
+
+    // upper bound of each bucket, in nanoseconds, there is one more bucket
+    // after these for anything slower
+    private static final long[] BOUNDS = new long[] {
+        100000L, 250000L, 500000L,
+        1000000L, 2500000L, 5000000L,
+        10000000L, 25000000L, 50000000L,
+        100000000L, 250000000L, 500000000L,
+        1000000000L, 2500000000L, 5000000000L,
+        10000000000L
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+    public void record(long elapsedNanos) {
+        super.record(elapsedNanos);
+        buckets.incrementAndGet(bucketFor(elapsedNanos));
+    }
+
+    static int bucketFor(long elapsedNanos) {
+        int low = 0;
+        int high = BOUNDS.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (elapsedNanos <= BOUNDS[mid]) {
+                high = mid;
+            }
+            else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * number of buckets, including the last one that has no upper bound
+     */
+    public static int getBucketCount() {
+        return BOUNDS.length + 1;
+    }
+
+    /**
+     * upper bound of a bucket in seconds, the last bucket has none and
+     * gives positive infinity
+     */
+    public static double getUpperBoundSeconds(int bucket) {
+        if (bucket >= BOUNDS.length) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return BOUNDS[bucket] / 1000000000.0;
+    }
+
+    /**
+     * copy of the count in each bucket, read one at a time while recording
+     * goes on, so add these up instead of mixing them with getCount
+     */
+    public long[] getBuckets() {
+        long[] copy = new long[buckets.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return copy;
+    }
+}
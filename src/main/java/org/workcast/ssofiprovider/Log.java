@@ -0,0 +1,533 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server log. Logging a record only puts it in a ring buffer, without
+ * taking any lock, and a background thread formats it and writes it out, so
+ * request threads never wait for each other or for the disk the way they do
+ * on System.out. If the log can not keep up and the buffer is full, records
+ * are dropped and the number dropped is logged when there is room again.
+ *
+ * The log goes to the file named by logFile, which is rotated when it gets
+ * to logMaxBytes, keeping logFileCount old ones (log.1 is the newest).
+ * Without a logFile it goes to System.out, still written from the background
+ * thread. Records below logLevel are thrown away before anything is made.
+ *
+ * A warning or error that is exactly the same as one logged less than
+ * logRepeatSeconds ago is only counted, and the count is logged when that
+ * time is up, so a failing directory server can not fill the disk with the
+ * same stack trace.
+ *
+ * Like HashingService, this is set up with initialize() and used through
+ * static methods. Until then it logs everything from INFO up to System.out.
+ */
+public class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * One thing that was logged, as it was handed in. Turning it into text
+     * is left to the background thread.
+     */
+    private static class Record {
+        final long time;
+        final Level level;
+        final String thread;
+        final String message;
+        final Throwable error;
+
+        Record(Level level, String message, Throwable error) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Where and how the background thread writes. A new one is made by
+     * initialize, and the background thread switches to it when it sees it.
+     */
+    private static class Target {
+        final File file; // null for System.out
+        final long maxBytes;
+        final int fileCount;
+        final long repeatMillis;
+
+        Target(File file, long maxBytes, int fileCount, long repeatMillis) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.fileCount = fileCount;
+            this.repeatMillis = repeatMillis;
+        }
+    }
+
+    /**
+     * A warning or error seen recently, and how many times it came again
+     */
+    private static class Repeat {
+        final long firstTime;
+        final Level level;
+        final String message;
+        int count = 0;
+
+        Repeat(long firstTime, Level level, String message) {
+            this.firstTime = firstTime;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    // must be a power of two
+    private static final int CAPACITY = 8192;
+    private static final long IDLE_NANOS = 20000000L;
+
+    // Records go in at tail and come out at head. A writer claims a slot by
+    // moving tail on, then puts the record in it. The background thread is
+    // the only one that takes records out and moves head on.
+    private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<Record>(
+            CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static volatile Level threshold = Level.INFO;
+    private static volatile Target target = new Target(null, 0, 0, 60000);
+    private static volatile Thread drainThread = null;
+    private static volatile boolean running = false;
+
+    // set by shutdown, so that a late log call does not start a new thread
+    // in a web application that has been taken out of service
+    private static volatile boolean stopped = false;
+
+    // only used on the background thread
+    private static Target openTarget = null;
+    private static Writer out = null;
+    private static CountingStream counter = null;
+    private static final Map<String, Repeat> repeats = new HashMap<String, Repeat>();
+    private static final SimpleDateFormat timeFormat = new SimpleDateFormat(
+            "yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * Reads logFile, logLevel (default INFO), logMaxBytes (default 10MB),
+     * logFileCount (default 5) and logRepeatSeconds (default 60).
+     */
+    public static synchronized void initialize(Properties configSettings) throws Exception {
+        String levelName = configSettings.getProperty("logLevel");
+        Level level = Level.INFO;
+        if (levelName != null && levelName.trim().length() > 0) {
+            try {
+                level = Level.valueOf(levelName.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new Exception("The setting for 'logLevel' in the configuration file must "
+                        + "be DEBUG, INFO, WARN or ERROR, got (" + levelName + ")");
+            }
+        }
+        File file = null;
+        String fileName = configSettings.getProperty("logFile");
+        if (fileName != null && fileName.trim().length() > 0) {
+            file = new File(fileName.trim());
+        }
+        target = new Target(file, getLongSetting(configSettings, "logMaxBytes", 10485760),
+                (int) getLongSetting(configSettings, "logFileCount", 5), getLongSetting(
+                        configSettings, "logRepeatSeconds", 60) * 1000);
+        threshold = level;
+        stopped = false;
+        start();
+    }
+
+    /**
+     * Writes out everything logged so far and stops the background thread.
+     * Anything logged after this is written straight to System.out on the
+     * caller's thread, until initialize is called again.
+     */
+    public static synchronized void shutdown() {
+        stopped = true;
+        Thread t = drainThread;
+        if (t == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(t);
+        try {
+            t.join(5000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // if it is still writing, it stays the one thread that takes records
+        // out, and start will wait for it
+        if (!t.isAlive()) {
+            drainThread = null;
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    public static void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Record record = new Record(level, message, error);
+        if (stopped) {
+            writeStopped(record);
+            return;
+        }
+        if (drainThread == null) {
+            start();
+        }
+        while (true) {
+            long slot = tail.get();
+            if (slot - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                ring.set((int) slot & (CAPACITY - 1), record);
+                if (slot - head == CAPACITY / 2) {
+                    // filling up, don't wait for the background thread to
+                    // wake up by itself
+                    Thread t = drainThread;
+                    if (t != null) {
+                        LockSupport.unpark(t);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private static synchronized void start() {
+        Thread old = drainThread;
+        if (old != null) {
+            if (running) {
+                return;
+            }
+            // stopped by shutdown, but had not finished then
+            try {
+                old.join(5000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (old.isAlive()) {
+                // two threads must never take records out at once
+                stopped = true;
+                return;
+            }
+            drainThread = null;
+        }
+        if (stopped) {
+            return;
+        }
+        running = true;
+        Thread t = new DaemonThreadFactory("SSOFI-log").newThread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        });
+        drainThread = t;
+        t.start();
+    }
+
+    private static void drainLoop() {
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            boolean stopping = !running;
+            int count = 0;
+            try {
+                count = drain();
+                long now = System.currentTimeMillis();
+                if (count == 0 || now - lastSweep > 1000) {
+                    sweepRepeats(now, stopping);
+                    lastSweep = now;
+                    if (out != null) {
+                        out.flush();
+                    }
+                }
+            }
+            catch (Exception e) {
+                // nowhere better to say so
+                e.printStackTrace();
+                closeOutput();
+            }
+            if (stopping && count == 0) {
+                closeOutput();
+                return;
+            }
+            if (count == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * After shutdown there is no background thread, and the writer belongs
+     * to the one that has stopped, so the record goes to System.out as it is.
+     */
+    private static void writeStopped(Record record) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        synchronized (System.out) {
+            System.out.println(format.format(new Date(record.time)) + " " + record.level.name()
+                    + " [" + record.thread + "] " + record.message);
+            if (record.error != null) {
+                record.error.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * takes out and writes everything that is ready, returns how many
+     */
+    private static int drain() throws Exception {
+        int count = 0;
+        long pos = head;
+        while (pos < tail.get()) {
+            int index = (int) pos & (CAPACITY - 1);
+            Record record = ring.get(index);
+            if (record == null) {
+                // claimed, but the record is not in it yet
+                break;
+            }
+            ring.set(index, null);
+            pos++;
+            head = pos;
+            write(record);
+            count++;
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            write(new Record(Level.WARN, lost + " log records were dropped because the log "
+                    + "could not keep up", null));
+        }
+        return count;
+    }
+
+    private static void write(Record record) throws Exception {
+        Target t = target;
+        if (record.level.compareTo(Level.WARN) >= 0 && t.repeatMillis > 0) {
+            String key = record.level + record.message
+                    + (record.error == null ? "" : "\n" + record.error);
+            Repeat repeat = repeats.get(key);
+            if (repeat != null && record.time - repeat.firstTime < t.repeatMillis) {
+                repeat.count++;
+                return;
+            }
+            if (repeat != null) {
+                writeRepeatCount(repeat);
+            }
+            repeats.put(key, new Repeat(record.time, record.level, record.message));
+        }
+        writeText(record.time, record.level, record.thread, record.message, record.error);
+    }
+
+    /**
+     * reports, and forgets, repeats whose time is up, or all of them
+     */
+    private static void sweepRepeats(long now, boolean all) throws Exception {
+        long repeatMillis = target.repeatMillis;
+        Iterator<Repeat> it = repeats.values().iterator();
+        while (it.hasNext()) {
+            Repeat repeat = it.next();
+            if (all || now - repeat.firstTime >= repeatMillis) {
+                writeRepeatCount(repeat);
+                it.remove();
+            }
+        }
+    }
+
+    private static void writeRepeatCount(Repeat repeat) throws Exception {
+        if (repeat.count > 0) {
+            writeText(System.currentTimeMillis(), repeat.level, "SSOFI-log", "previous message "
+                    + "repeated " + repeat.count + " more times: " + repeat.message, null);
+        }
+    }
+
+    private static void writeText(long time, Level level, String thread, String message,
+            Throwable error) throws Exception {
+        Writer w = getOutput();
+        w.write(timeFormat.format(new Date(time)));
+        w.write(' ');
+        w.write(level.name());
+        w.write(" [");
+        w.write(thread);
+        w.write("] ");
+        w.write(String.valueOf(message));
+        w.write('\n');
+        if (error != null) {
+            PrintWriter pw = new PrintWriter(w);
+            error.printStackTrace(pw);
+            pw.flush();
+        }
+        Target t = openTarget;
+        if (t.file != null && t.maxBytes > 0) {
+            w.flush();
+            if (counter.count >= t.maxBytes) {
+                closeOutput();
+                rotate(t);
+            }
+        }
+    }
+
+    private static Writer getOutput() throws Exception {
+        Target t = target;
+        if (out != null && t == openTarget) {
+            return out;
+        }
+        closeOutput();
+        if (t.file == null) {
+            // System.out is left open when switching to a file
+            counter = new CountingStream(System.out, 0, false);
+        }
+        else {
+            counter = new CountingStream(new FileOutputStream(t.file, true), t.file.length(),
+                    true);
+        }
+        out = new OutputStreamWriter(counter, "UTF-8");
+        openTarget = t;
+        return out;
+    }
+
+    private static void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (Exception e) {
+                // nothing to do about it
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * log becomes log.1, log.1 becomes log.2 and so on, the oldest is deleted
+     */
+    private static void rotate(Target t) {
+        String path = t.file.getPath();
+        new File(path + "." + t.fileCount).delete();
+        for (int i = t.fileCount - 1; i >= 1; i--) {
+            File older = new File(path + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(path + "." + (i + 1)));
+            }
+        }
+        if (t.fileCount > 0) {
+            t.file.renameTo(new File(path + ".1"));
+        }
+        else {
+            t.file.delete();
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+        private final OutputStream wrapped;
+        private final boolean closeWrapped;
+        long count;
+
+        CountingStream(OutputStream wrapped, long count, boolean closeWrapped) {
+            this.wrapped = wrapped;
+            this.count = count;
+            this.closeWrapped = closeWrapped;
+        }
+
+        public void write(int b) throws IOException {
+            wrapped.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            wrapped.write(b, off, len);
+            count += len;
+        }
+
+        public void flush() throws IOException {
+            wrapped.flush();
+        }
+
+        public void close() throws IOException {
+            if (closeWrapped) {
+                wrapped.close();
+            }
+            else {
+                wrapped.flush();
+            }
+        }
+    }
+
+    private static long getLongSetting(Properties configSettings, String key, long defaultVal)
+            throws Exception {
+        String val = configSettings.getProperty(key);
+        if (val == null || val.trim().length() == 0) {
+            return defaultVal;
+        }
+        try {
+            return Long.parseLong(val.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new Exception("The setting for '" + key
+                    + "' in the configuration file must be a number, got (" + val + ")");
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and gauges for the whole server, and the page that reports them
+ * along with the per mode times of the route table, in the Prometheus text
+ * format.
+ *
+ * Counting is an atomic increment and can be done on every request. Gauges
+ * are only asked for their value when the page is fetched, so they may do a
+ * little work, like counting files.
+ *
+ * Like HashingService, this is set up with initialize() and used through
+ * static methods.
+ */
+public class Metrics {
+
+    /**
+     * something that can say its current value when asked
+     */
+    public interface Gauge {
+        long getValue() throws Exception;
+    }
+
+    private static class GaugeEntry {
+        final String help;
+        final Gauge gauge;
+
+        GaugeEntry(String help, Gauge gauge) {
+            this.help = help;
+            this.gauge = gauge;
+        }
+    }
+
+    private static final AtomicLong logins = new AtomicLong();
+    private static final AtomicLong loginFailures = new AtomicLong();
+    private static final AtomicLong redirects = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+
+    private static final Map<String, GaugeEntry> gauges =
+            new ConcurrentSkipListMap<String, GaugeEntry>();
+
+    // the secret a scraper sends as "Authorization: Bearer ...", null when
+    // only a logged in administrator may see the page
+    private static volatile byte[] token = null;
+
+    /**
+     * Reads metricsToken, the secret that lets a scraper fetch the metrics
+     * page without logging in. The address a request comes from is not
+     * trusted, because behind a reverse proxy every request comes from the
+     * proxy.
+     */
+    public static void initialize(Properties configSettings) throws Exception {
+        String setting = configSettings.getProperty("metricsToken");
+        if (setting == null || setting.trim().length() == 0) {
+            token = null;
+            return;
+        }
+        token = setting.trim().getBytes("UTF-8");
+    }
+
+    /**
+     * true when the Authorization header carries the configured token,
+     * compared in a time that does not depend on where it first differs
+     */
+    public static boolean hasValidToken(String authorization) throws Exception {
+        byte[] expected = token;
+        if (expected == null || authorization == null
+                || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return false;
+        }
+        byte[] given = authorization.substring(7).trim().getBytes("UTF-8");
+        return MessageDigest.isEqual(expected, given);
+    }
+
+    public static void countLogin(boolean succeeded) {
+        if (succeeded) {
+            logins.incrementAndGet();
+        }
+        else {
+            loginFailures.incrementAndGet();
+        }
+    }
+
+    public static void countRedirect() {
+        redirects.incrementAndGet();
+    }
+
+    public static void countError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Adds a gauge, or replaces the one with the same name, which is what
+     * happens when the servlet is initialized again.
+     */
+    public static void setGauge(String name, String help, Gauge gauge) {
+        gauges.put(name, new GaugeEntry(help, gauge));
+    }
+
+    public static void writePrometheus(Writer out, List<OpenIDHandler.Route> routes)
+            throws Exception {
+
+        out.write("# HELP ssofi_request_seconds Time to handle a request, by openid.mode\n");
+        out.write("# TYPE ssofi_request_seconds histogram\n");
+        for (OpenIDHandler.Route route : routes) {
+            LatencyHistogram latency = route.getLatency();
+            String label = "mode=\"" + route.getMode() + "\"";
+            long[] buckets = latency.getBuckets();
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i];
+                out.write("ssofi_request_seconds_bucket{" + label + ",le=\""
+                        + formatBound(LatencyHistogram.getUpperBoundSeconds(i)) + "\"} "
+                        + cumulative + "\n");
+            }
+            out.write("ssofi_request_seconds_sum{" + label + "} "
+                    + (latency.getTotalNanos() / 1000000000.0) + "\n");
+            out.write("ssofi_request_seconds_count{" + label + "} " + cumulative + "\n");
+        }
+
+        out.write("# HELP ssofi_request_failures_total Requests that ended in an error,"
+                + " by openid.mode\n");
+        out.write("# TYPE ssofi_request_failures_total counter\n");
+        for (OpenIDHandler.Route route : routes) {
+            out.write("ssofi_request_failures_total{mode=\"" + route.getMode() + "\"} "
+                    + route.getFailures() + "\n");
+        }
+
+        writeCounter(out, "ssofi_logins_total", "Successful password checks", logins.get());
+        writeCounter(out, "ssofi_login_failures_total", "Failed password checks",
+                loginFailures.get());
+        writeCounter(out, "ssofi_redirects_total", "Redirects sent", redirects.get());
+        writeCounter(out, "ssofi_errors_total", "Requests that ended in an error", errors.get());
+
+        writeSummary(out, "ssofi_hash_queue_seconds",
+                "Time password hashes waited for a hashing thread", HashingService.getQueueWait());
+        writeSummary(out, "ssofi_hash_seconds", "Time spent computing password hashes",
+                HashingService.getHashTime());
+        writeCounter(out, "ssofi_hash_rejected_total",
+                "Password hashes turned away because the queue was full",
+                HashingService.getRejectedCount());
+
+        for (Map.Entry<String, GaugeEntry> entry : gauges.entrySet()) {
+            String name = entry.getKey();
+            long value;
+            try {
+                value = entry.getValue().gauge.getValue();
+            }
+            catch (Exception e) {
+                // one broken gauge should not hide the rest
+                Log.warn("SSOFI: metric " + name + " failed: " + e);
+                continue;
+            }
+            out.write("# HELP " + name + " " + entry.getValue().help + "\n");
+            out.write("# TYPE " + name + " gauge\n");
+            out.write(name + " " + value + "\n");
+        }
+        out.flush();
+    }
+
+    private static void writeCounter(Writer out, String name, String help, long value)
+            throws Exception {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " counter\n");
+        out.write(name + " " + value + "\n");
+    }
+
+    private static void writeSummary(Writer out, String name, String help,
+            LatencyCounter latency) throws Exception {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " summary\n");
+        out.write(name + "_sum " + (latency.getTotalNanos() / 1000000000.0) + "\n");
+        out.write(name + "_count " + latency.getCount() + "\n");
+    }
+
+    private static String formatBound(double seconds) {
+        if (Double.isInfinite(seconds)) {
+            return "+Inf";
+        }
+        return Double.toString(seconds);
+    }
+}
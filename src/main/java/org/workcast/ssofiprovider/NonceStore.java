@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Remembers the response nonces of the assertions that have been confirmed
+ * with check_authentication, so that the same assertion can not be
+ * confirmed twice, and refuses assertions whose nonce is too old to be
+ * remembered any more.
+ *
+ * openid4java already removes the private association once an assertion
+ * signed with it has been verified, so a second check_authentication
+ * normally fails on its own. This is a second line of defense: it does not
+ * depend on how the library treats private associations, and it closes the
+ * gap between loading the association and removing it, in which two
+ * requests for the same assertion can both be verified.
+ *
+ * Each nonce is kept as a 64 bit hash, together with its association handle
+ * since the nonce alone is only unique within one server, in a set of
+ * primitive longs for the minute of the nonce's own time stamp. A whole
+ * minute is dropped once it is older than the maximum age, so memory stays
+ * at the number of confirmations in that time, and never more than
+ * maxEntries; when that is reached new confirmations are refused rather
+ * than risk a replay.
+ *
+ * With a folder, which all the servers of a cluster share like the
+ * association folder, each nonce is also claimed by creating an empty file
+ * named by its hash in a folder for its minute. Creating a file is atomic,
+ * so only one server can claim a nonce, also when two get the same
+ * assertion at the same moment, and a claim is still there after a restart.
+ * Old minutes are cleaned up by deleting whole folders.
+ */
+public class NonceStore {
+
+    private static final long BUCKET_MILLIS = 60000;
+    private static final long CLEANUP_MILLIS = 60000;
+
+    // a nonce from up to this far in the future is accepted, for clock
+    // differences between servers
+    private static final long ALLOWED_SKEW_MILLIS = 300000;
+
+    private final long maxAgeMillis;
+    private final int maxEntries;
+    private final File folder;
+    private final TreeMap<Long, LongSet> buckets = new TreeMap<Long, LongSet>();
+    private int size = 0;
+    private long nextCleanup = 0;
+
+    public NonceStore(long maxAgeMillis, int maxEntries, File folder) throws Exception {
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxEntries = maxEntries;
+        this.folder = folder;
+        if (folder != null && !folder.exists() && !folder.mkdirs() && !folder.exists()) {
+            throw new Exception("Unable to create the nonce folder (" + folder + ")");
+        }
+    }
+
+    /**
+     * Records the nonce and returns true if it has not been seen before and
+     * is recent enough, otherwise returns false.
+     */
+    public synchronized boolean checkAndRecord(String nonce, String handle) throws Exception {
+        long now = System.currentTimeMillis();
+        long nonceTime = parseTime(nonce);
+        if (nonceTime < 0 || nonceTime < now - maxAgeMillis
+                || nonceTime > now + ALLOWED_SKEW_MILLIS) {
+            return false;
+        }
+        dropOldBuckets(now);
+        long bucket = nonceTime / BUCKET_MILLIS;
+        long hash = hash(nonce, handle);
+        LongSet set = buckets.get(bucket);
+        if (set == null) {
+            set = new LongSet();
+            buckets.put(bucket, set);
+        }
+        else if (set.contains(hash)) {
+            return false;
+        }
+        if (size >= maxEntries) {
+            Log.warn("NonceStore: " + size + " nonces remembered, refusing to confirm more "
+                    + "until older ones expire");
+            return false;
+        }
+        // when the file is already there, another server, or this one before
+        // a restart, confirmed it first
+        boolean claimed = folder == null || claim(bucket, hash);
+        set.add(hash);
+        size++;
+        return claimed;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void dropOldBuckets(long now) {
+        long oldest = (now - maxAgeMillis) / BUCKET_MILLIS;
+        Iterator<Map.Entry<Long, LongSet>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, LongSet> entry = it.next();
+            if (entry.getKey() >= oldest) {
+                // the rest are newer
+                break;
+            }
+            size -= entry.getValue().size();
+            it.remove();
+        }
+        if (folder != null && now >= nextCleanup) {
+            nextCleanup = now + CLEANUP_MILLIS;
+            cleanupFolder(oldest);
+        }
+    }
+
+    /**
+     * the time stamp that starts every OpenID 2 nonce, like
+     * 2005-05-15T17:11:51Z, or -1 if there is none
+     */
+    static long parseTime(String nonce) {
+        if (nonce == null || nonce.length() < 20) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        format.setLenient(false);
+        try {
+            return format.parse(nonce.substring(0, 20)).getTime();
+        }
+        catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    static long hash(String nonce, String handle) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(nonce.getBytes("UTF-8"));
+        md.update((byte) 0);
+        if (handle != null) {
+            md.update(handle.getBytes("UTF-8"));
+        }
+        byte[] digest = md.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * true if this call created the file for the nonce, false if it was
+     * already there
+     */
+    private boolean claim(long bucket, long hash) throws Exception {
+        File bucketFolder = new File(folder, Long.toString(bucket));
+        if (!bucketFolder.exists() && !bucketFolder.mkdirs() && !bucketFolder.exists()) {
+            throw new Exception("unable to create folder " + bucketFolder);
+        }
+        return new File(bucketFolder, Long.toHexString(hash) + ".nonce").createNewFile();
+    }
+
+    /**
+     * deletes the folders of minutes that are too old to be checked, on
+     * whichever server gets there first
+     */
+    private void cleanupFolder(long oldest) {
+        File[] children = folder.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File bucketFolder : children) {
+            long bucket;
+            try {
+                bucket = Long.parseLong(bucketFolder.getName());
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            if (bucket < oldest) {
+                File[] nonces = bucketFolder.listFiles();
+                if (nonces != null) {
+                    for (File nonceFile : nonces) {
+                        nonceFile.delete();
+                    }
+                }
+                bucketFolder.delete();
+            }
+        }
+    }
+
+    /**
+     * An open addressing hash set of longs, eight bytes an entry at most half
+     * full, with no object for each entry.
+     */
+    static class LongSet {
+        // zero marks an empty slot, so a hash of zero is kept as one, which
+        // only makes a collision that was already one in 2^64 a bit likelier
+        private long[] table = new long[16];
+        private int count = 0;
+
+        boolean contains(long value) {
+            if (value == 0) {
+                value = 1;
+            }
+            int mask = table.length - 1;
+            int i = (int) (value ^ (value >>> 32)) & mask;
+            while (table[i] != 0) {
+                if (table[i] == value) {
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        void add(long value) {
+            if (value == 0) {
+                value = 1;
+            }
+            if ((count + 1) * 2 > table.length) {
+                long[] old = table;
+                table = new long[old.length * 2];
+                count = 0;
+                for (long v : old) {
+                    if (v != 0) {
+                        insert(v);
+                    }
+                }
+            }
+            insert(value);
+        }
+
+        private void insert(long value) {
+            int mask = table.length - 1;
+            int i = (int) (value ^ (value >>> 32)) & mask;
+            while (table[i] != 0) {
+                if (table[i] == value) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = value;
+            count++;
+        }
+
+        int size() {
+            return count;
+        }
+    }
+}
@@ -21,17 +21,17 @@ package org.workcast.ssofiprovider;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.Reader;
 import java.io.Writer;
 import java.net.URLEncoder;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -39,7 +39,6 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.openid4java.message.AuthFailure;
 import org.openid4java.message.AuthRequest;
@@ -47,6 +46,8 @@ import org.openid4java.message.AuthSuccess;
 import org.openid4java.message.DirectError;
 import org.openid4java.message.Message;
 import org.openid4java.message.MessageExtension;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.VerifyResponse;
 import org.openid4java.message.ax.AxMessage;
 import org.openid4java.message.ax.FetchRequest;
 import org.openid4java.message.ax.FetchResponse;
@@ -68,7 +69,7 @@ import org.workcast.streams.SSLPatch;
  * is set upon successful login. Note that the openId protocol does not require
  * that the display user be the user logging in.
  */
-public class OpenIDHandler implements TemplateTokenRetriever {
+public class OpenIDHandler implements IndexedTokenRetriever {
 
     public static ServerManager manager = null;
     public static boolean initialized = false;
@@ -82,15 +83,27 @@ public class OpenIDHandler implements TemplateTokenRetriever {
     // use this for decomposing request URLs
     public static String rootURL;
     public static String knownAssetPath;
+    public static String metricsPath;
 
     private static AuthStyle authStyle = null;
     private static SessionHandler sHand = null;
     private static EmailHandler emailHandler = null;
     private static SecurityHandler securityHandler = null;
+    private static TemplateResolver templateResolver = null;
+    private static AssetHandler assetHandler = null;
+    private static NonceStore nonceStore = null;
+
+    // pages at least this long are sent compressed, zero means never
+    private static int pageGzipMinBytes = 1024;
+
+    // send the time of each phase of a request in a Server-Timing header
+    private static boolean serverTiming = false;
+
+    // requests slower than this are logged with their phases, zero for never
+    private static long slowRequestNanos = 1000000000L;
 
     HttpServletRequest request;
     HttpServletResponse response;
-    HttpSession session;
 
     AuthSession aSession;
     boolean saveSession = false;
@@ -109,6 +122,237 @@ public class OpenIDHandler implements TemplateTokenRetriever {
 
     static boolean isLDAPMode = false;
 
+    // the openid.mode of this request, and the route that serves it
+    private String mode;
+    private Route route;
+    private boolean failed = false;
+
+    // where the time of this request goes
+    private RequestTimer timer;
+
+    // The page or redirect for the browser is held until the session is
+    // saved, so that the Server-Timing header can include everything, and
+    // the browser never gets ahead of the saved session.
+    private PageBuffer pendingPage;
+    private String pendingRedirect;
+
+    // what a route needs done around it, see Route
+    static final int READS_SESSION = 1;
+    static final int WRITES_SESSION = 2;
+    static final int RENDERS_TEMPLATE = 4;
+
+    /**
+     * One openid.mode and what it takes to serve it. Routes are shared by all
+     * requests and hold no request state: the handler for the request is
+     * passed in. The dispatch in doGet does the session reading and saving
+     * that the route asks for, and counts and times every request against
+     * its route, so a new mode gets measured just by being in the table.
+     */
+    static abstract class Route {
+        final String mode;
+        final int needs;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+
+        Route(String mode, int needs) {
+            this.mode = mode;
+            this.needs = needs;
+        }
+
+        abstract void handle(OpenIDHandler h) throws Exception;
+
+        void record(long elapsedNanos, boolean failed) {
+            latency.record(elapsedNanos);
+            if (failed) {
+                failures.incrementAndGet();
+            }
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+
+    private static final Map<String, Route> routes = buildRoutes();
+
+    // any mode not in the table, counted together so that made up modes
+    // can not grow anything
+    private static final Route unknownRoute = new Route("unknown", READS_SESSION | WRITES_SESSION) {
+        void handle(OpenIDHandler h) throws Exception {
+            throw new Exception("Unable to handle request for mode: " + h.mode);
+        }
+    };
+
+    private static Map<String, Route> buildRoutes() {
+        Route[] all = new Route[] {
+            new Route("lookup", READS_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeLookup();
+                }
+            },
+            new Route("loginView", READS_SESSION | RENDERS_TEMPLATE) {
+                // this is the mode that displays a login prompt
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeLoginView();
+                }
+            },
+            new Route("changeIdView", READS_SESSION | RENDERS_TEMPLATE) {
+                // this is the mode that displays prompt to change id
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeChangeIdView();
+                }
+            },
+            new Route("passwordView", READS_SESSION | RENDERS_TEMPLATE) {
+                // this is the mode that displays prompt to change password
+                void handle(OpenIDHandler h) throws Exception {
+                    h.streamTemplate("changePassword");
+                }
+            },
+            new Route("register", READS_SESSION | RENDERS_TEMPLATE) {
+                // this is the mode that displays prompt to register new user
+                // which then posts to 'registerNewAction'
+                void handle(OpenIDHandler h) throws Exception {
+                    h.streamTemplate("userRegistration");
+                }
+            },
+            new Route("registerNewAction", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeRegisterNewAction();
+                }
+            },
+            new Route("confirmationKey", READS_SESSION | RENDERS_TEMPLATE) {
+                // this is the mode that displays prompt for the emailed key
+                // which then posts to 'validateKeyAction'
+                void handle(OpenIDHandler h) throws Exception {
+                    h.displayInfo = authStyle.getUserInfo(h.aSession.regEmail);
+                    h.streamTemplate("enterConfirmationKey");
+                }
+            },
+            new Route("validateKeyAction", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeValidateKeyAction();
+                }
+            },
+            new Route("registrationForm", READS_SESSION | RENDERS_TEMPLATE) {
+                // this is the mode that displays prompt for user details
+                // which then posts to 'createNewUserAction'
+                void handle(OpenIDHandler h) throws Exception {
+                    h.streamTemplate("registrationForm");
+                }
+            },
+            new Route("createNewUserAction", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeCreateNewUserAction();
+                }
+            },
+            new Route("login", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeLogin();
+                }
+            },
+            new Route("loginAction", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeLoginAction();
+                }
+            },
+            new Route("cancelAction", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.returnLoginFailure();
+                }
+            },
+            new Route("passwordAction", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modePasswordAction();
+                }
+            },
+            new Route("resetPasswordAction", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeResetPasswordAction();
+                }
+            },
+            new Route("acceptPreviousLogin", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.returnLoginSuccess();
+                }
+            },
+            new Route("relogin", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.setLogin(null);
+                    h.sendRedirect("?openid.mode=loginView");
+                }
+            },
+            new Route("logout", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    String go = h.reqParam("go");
+                    h.setLogin(null);
+                    h.sendRedirect(go);
+                }
+            },
+            new Route("display", READS_SESSION | RENDERS_TEMPLATE) {
+                // just need to display the user information
+                void handle(OpenIDHandler h) throws Exception {
+                    if (h.isDisplaying) {
+                        h.displayUserPage();
+                    }
+                    else {
+                        h.displayRootPage();
+                    }
+                }
+            },
+            new Route("checkid_setup", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeCheckidSetup();
+                }
+            },
+            new Route("checkid_immediate", READS_SESSION | WRITES_SESSION) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeCheckidImmediate();
+                }
+            },
+            new Route("associate", 0) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeDirectRequest();
+                }
+            },
+            new Route("check_authentication", 0) {
+                void handle(OpenIDHandler h) throws Exception {
+                    h.modeDirectRequest();
+                }
+            }
+        };
+        Map<String, Route> table = new HashMap<String, Route>();
+        for (Route r : all) {
+            table.put(r.mode, r);
+        }
+        return Collections.unmodifiableMap(table);
+    }
+
+    static Route findRoute(String mode) {
+        Route r = routes.get(mode);
+        if (r == null) {
+            return unknownRoute;
+        }
+        return r;
+    }
+
+    /**
+     * every route in the table, and the one for unknown modes, with the
+     * counts and times recorded against them
+     */
+    public static List<Route> getRoutes() {
+        List<Route> all = new ArrayList<Route>(routes.values());
+        all.add(unknownRoute);
+        return all;
+    }
+
     /**
      * Handler static variables must be set up before handling any request. This
      * matches the servlet initialization protocol.
@@ -117,6 +361,12 @@ public class OpenIDHandler implements TemplateTokenRetriever {
 
         ServletContext sc = config.getServletContext();
 
+        // needed even for the page that reports a failure below
+        if (templateResolver != null) {
+            templateResolver.shutdown();
+        }
+        templateResolver = new TemplateResolver(new File(sc.getRealPath("/")));
+
         try {
             // disable Java certificate validation in the SSL level
             // necessary so that bytes can be read reliably over SSL
@@ -149,6 +399,9 @@ public class OpenIDHandler implements TemplateTokenRetriever {
             else {
                 sHand = new SessionHandlerFile(new File(sessionFolder));
             }
+            Log.initialize(configSettings);
+            HashingService.initialize(configSettings);
+            Metrics.initialize(configSettings);
             isLDAPMode = "LDAP".equalsIgnoreCase(configSettings.getProperty("authStyle"));
 
             if (isLDAPMode) {
@@ -171,6 +424,17 @@ public class OpenIDHandler implements TemplateTokenRetriever {
                 rootURL = rootURL + "/";
             }
             knownAssetPath = rootURL + "$/";
+            metricsPath = rootURL + "$metrics";
+            assetHandler = new AssetHandler(sc, new File(sc.getRealPath("/$")), configSettings);
+            String gzipSetting = configSettings.getProperty("pageGzipMinBytes");
+            if (gzipSetting != null && gzipSetting.trim().length() > 0) {
+                pageGzipMinBytes = Integer.parseInt(gzipSetting.trim());
+            }
+            serverTiming = "true".equalsIgnoreCase(configSettings.getProperty("serverTiming"));
+            String slowSetting = configSettings.getProperty("slowRequestMillis");
+            if (slowSetting != null && slowSetting.trim().length() > 0) {
+                slowRequestNanos = Long.parseLong(slowSetting.trim()) * 1000000L;
+            }
 
             String captchaPrivateKey = configSettings.getProperty("captchaPrivateKey");
             String captchaPublicKey = configSettings.getProperty("captchaPublicKey");
@@ -191,7 +455,41 @@ public class OpenIDHandler implements TemplateTokenRetriever {
             Properties emailConfigSettings = propEmail;
             emailHandler = new EmailHandler(sc, emailConfigSettings);
 
+            registerGauges();
+
             manager = new ServerManager();
+            // with a shared folder, any server of a cluster can verify what
+            // another one signed
+            String associationFolder = configSettings.getProperty("associationFolder");
+            if (associationFolder == null && sessionFolder != null) {
+                associationFolder = new File(sessionFolder, "associations").getPath();
+            }
+            if (associationFolder != null) {
+                File assocRoot = new File(associationFolder);
+                manager.setSharedAssociations(new FileAssociationStore(new File(assocRoot,
+                        "shared")));
+                manager.setPrivateAssociations(new FileAssociationStore(new File(assocRoot,
+                        "private")));
+            }
+            // each assertion may be confirmed by check_authentication only once
+            long nonceMaxAge = 900;
+            String nonceAgeSetting = configSettings.getProperty("nonceMaxAgeSeconds");
+            if (nonceAgeSetting != null && nonceAgeSetting.trim().length() > 0) {
+                nonceMaxAge = Long.parseLong(nonceAgeSetting.trim());
+            }
+            int nonceMaxEntries = 1000000;
+            String nonceEntriesSetting = configSettings.getProperty("nonceMaxEntries");
+            if (nonceEntriesSetting != null && nonceEntriesSetting.trim().length() > 0) {
+                nonceMaxEntries = Integer.parseInt(nonceEntriesSetting.trim());
+            }
+            // shared by the cluster like the associations, and next to them
+            String nonceFolder = configSettings.getProperty("nonceFolder");
+            if (nonceFolder == null && associationFolder != null) {
+                nonceFolder = new File(associationFolder, "nonces").getPath();
+            }
+            nonceStore = new NonceStore(nonceMaxAge * 1000, nonceMaxEntries,
+                    nonceFolder == null ? null : new File(nonceFolder));
+
             // configure the OpenID Provider's endpoint URL
 
             String pattern = getRequiredConfigProperty(configSettings, "pattern").toLowerCase();
@@ -216,10 +514,57 @@ public class OpenIDHandler implements TemplateTokenRetriever {
             initFailure = e;
             // get something into the log as well in case nobody accesses the
             // server
-            e.printStackTrace();
+            Log.error("SSOFI: unable to initialize", e);
         }
     }
 
+    /**
+     * Stop background activity when the servlet is taken out of service.
+     */
+    public static void destroy() {
+        if (authStyle != null) {
+            authStyle.shutdown();
+        }
+        HashingService.shutdown();
+        if (templateResolver != null) {
+            templateResolver.shutdown();
+        }
+        Log.shutdown();
+    }
+
+    private static void registerGauges() {
+        Metrics.setGauge("ssofi_sessions", "Sessions used within the last hour",
+                new Metrics.Gauge() {
+                    public long getValue() throws Exception {
+                        return sHand.getSessionCount();
+                    }
+                });
+        Metrics.setGauge("ssofi_template_cache_entries", "Compiled templates kept in memory",
+                new Metrics.Gauge() {
+                    public long getValue() {
+                        return TemplateStreamer.getCacheSize();
+                    }
+                });
+        Metrics.setGauge("ssofi_template_resolver_entries",
+                "Template names with the file that serves them remembered", new Metrics.Gauge() {
+                    public long getValue() {
+                        return templateResolver.size();
+                    }
+                });
+        Metrics.setGauge("ssofi_assets", "Files known under the $ asset folder",
+                new Metrics.Gauge() {
+                    public long getValue() {
+                        return assetHandler.getAssetCount();
+                    }
+                });
+        Metrics.setGauge("ssofi_nonces", "Response nonces remembered against replay",
+                new Metrics.Gauge() {
+                    public long getValue() {
+                        return nonceStore == null ? 0 : nonceStore.size();
+                    }
+                });
+    }
+
     private static String getRequiredConfigProperty(Properties configSettings, String key)
             throws Exception {
         String val = configSettings.getProperty(key);
@@ -237,41 +582,111 @@ public class OpenIDHandler implements TemplateTokenRetriever {
     public OpenIDHandler(HttpServletRequest httpReq, HttpServletResponse resp) {
         request = httpReq;
         response = resp;
-        session = request.getSession();
     }
 
     /**
      * an instance of this is created and called on a single thread
      */
     public void doGet() {
+        timer = RequestTimer.start();
         try {
+            // requests that need no session are recognized first, so that
+            // they never create, read or save one, or set the session cookie
+            if (initialized) {
+                String requestURL = request.getRequestURL().toString();
+                if (requestURL.startsWith(knownAssetPath)) {
+                    serveUpAsset(requestURL.substring(knownAssetPath.length()));
+                    return;
+                }
+                if (requestURL.equals(metricsPath)) {
+                    serveMetrics();
+                    return;
+                }
+                mode = defParam("openid.mode", "display");
+                route = findRoute(mode);
+                if ((route.needs & READS_SESSION) == 0) {
+                    route.handle(this);
+                    return;
+                }
+            }
+
             String sessionId = getSSOFISessionId();
 
             if (sHand==null) {
                 streamTemplate("configErrScreen");
                 return;
             }
-            aSession = sHand.getAuthSession(sessionId);
+            loadSession(sessionId);
             doGetWithSession();
             // doGetWithSession never throws an exception, which means that this
             // is being saved whether an error occurs or not! That is the right
             // thing because the session object holds the error message for the
             // next page
-            if (saveSession) {
-                sHand.saveAuthSession(sessionId, aSession);
-            }
+            storeSession(sessionId);
         }
         catch (Exception e) {
+            failed = true;
+            Log.error("!!! Error getting or saving session information !!!", e);
+        }
+        finally {
             try {
-                System.out.println("!!! Error getting or saving session information !!!");
-                e.printStackTrace();
+                sendPendingResponse();
             }
-            catch (Exception eeeee) {
-                eeeee.printStackTrace();
+            catch (Exception e) {
+                failed = true;
+                Log.error("!!! Error sending the response !!!", e);
+            }
+            timer.finish();
+            long elapsed = timer.getElapsedNanos();
+            if (failed) {
+                Metrics.countError();
+            }
+            if (route != null) {
+                route.record(elapsed, failed);
+            }
+            if (slowRequestNanos > 0 && elapsed > slowRequestNanos) {
+                Log.warn("SSOFI: slow request " + request.getRequestURL() + " @" + mode + ": "
+                        + timer);
             }
         }
     }
 
+    private void loadSession(String sessionId) throws Exception {
+        long loadStart = System.nanoTime();
+        SessionEvent event = new SessionEvent();
+        event.begin();
+        boolean ok = false;
+        try {
+            aSession = sHand.getAuthSession(sessionId);
+            ok = true;
+        }
+        finally {
+            event.report("load", sHand, mode, ok);
+            timer.add(RequestTimer.Phase.sessionLoad, System.nanoTime() - loadStart);
+        }
+    }
+
+    private void storeSession(String sessionId) throws Exception {
+        long saveStart = System.nanoTime();
+        SessionEvent event = new SessionEvent();
+        event.begin();
+        boolean ok = false;
+        try {
+            if (saveSession) {
+                sHand.saveAuthSession(sessionId, aSession);
+            }
+            else if (route != null) {
+                // nothing changed, but the session is still in use
+                sHand.markSessionTime(sessionId);
+            }
+            ok = true;
+        }
+        finally {
+            event.report(saveSession ? "save" : "touch", sHand, mode, ok);
+            timer.add(RequestTimer.Phase.sessionSave, System.nanoTime() - saveStart);
+        }
+    }
+
     /**
      * Handles the request with the assumption that the session object has been
      * fetched, and will be saved afterwards.
@@ -301,11 +716,6 @@ public class OpenIDHandler implements TemplateTokenRetriever {
                         + requestURL + ")");
             }
 
-            if (requestURL.startsWith(knownAssetPath)) {
-                serveUpAsset(requestURL.substring(knownAssetPath.length()));
-                return;
-            }
-
             // set up loggedUserId and loggedOpenId
             determineLoggedUser();
 
@@ -313,124 +723,57 @@ public class OpenIDHandler implements TemplateTokenRetriever {
             assoc_handle = request.getParameter("openid.assoc_handle");
 
             if (addressedUserId.length() > 0) {
+                long authStart = System.nanoTime();
                 displayInfo = authStyle.getUserInfo(addressedUserId);
+                timer.add(RequestTimer.Phase.auth, System.nanoTime() - authStart);
                 isDisplaying = true;
             }
 
-            // anything below here is LIKELY to change the session
-            saveSession = true;
-            String mode = defParam("openid.mode", "display");
-            System.out.println("OpenIdLDAP: " + request.getRequestURL().toString().trim() + " @"
-                    + mode);
-
-            if ("lookup".equals(mode)) {
-                redirectToIdentityPage(authStyle.searchForID(reqParam("entered-id")));
-            }
-            else if ("loginView".equals(mode)) {
-                // this is the mode that displays a login prompt
-                modeLoginView();
-            }
-            else if ("changeIdView".equals(mode)) {
-                // this is the mode that displays prompt to change id
-                modeChangeIdView();
-            }
-            else if ("passwordView".equals(mode)) {
-                // this is the mode that displays prompt to change password
-                streamTemplate("changePassword");
-            }
-            else if ("register".equals(mode)) {
-                // this is the mode that displays prompt to register new user
-                // which then posts to 'registerNewAction'
-                streamTemplate("userRegistration");
-            }
-            else if ("registerNewAction".equals(mode)) {
-                modeRegisterNewAction();
-            }
-            else if ("confirmationKey".equals(mode)) {
-                // this is the mode that displays prompt to change id
-                // which then posts to 'validateKeyAction'
-                displayInfo = authStyle.getUserInfo(aSession.regEmail);
-                streamTemplate("enterConfirmationKey");
-            }
-            else if ("validateKeyAction".equals(mode)) {
-                modeValidateKeyAction();
-            }
-            else if ("registrationForm".equals(mode)) {
-                // this is the mode that displays prompt for user details
-                // which then posts to 'createNewUserAction'
-                streamTemplate("registrationForm");
-            }
-            else if ("createNewUserAction".equals(mode)) {
-                modeCreateNewUserAction();
-            }
-            else if ("login".equals(mode)) {
-                // this takes the action of logging the user in, and returning
-                // if all OK
-                String enteredId = reqParam("entered-id");
-                String password = reqParam("password");
-                boolean flag = authStyle.authenticateUser(enteredId, password);
-                if (flag) {
-                    setLogin(enteredId);
-                }
-                else {
-                    aSession.errMsg = new Exception("Unable to log you in to user id (" + enteredId
-                            + ") with that password.  Please try again.");
-                }
-                redirectToIdentityPage(defParam("display-id", ""));
-            }
-            else if ("loginAction".equals(mode)) {
-                modeLoginAction();
-            }
-            else if ("cancelAction".equals(mode)) {
-                returnLoginFailure();
-            }
-            else if ("passwordAction".equals(mode)) {
-                modePasswordAction();
-            }
-            else if ("resetPasswordAction".equals(mode)) {
-                modeResetPasswordAction();
-            }
-            else if ("acceptPreviousLogin".equals(mode)) {
-                returnLoginSuccess();
-            }
-            else if ("relogin".equals(mode)) {
-                setLogin(null);
-                response.sendRedirect("?openid.mode=loginView");
-            }
-            else if ("logout".equals(mode)) {
-                String go = reqParam("go");
-                setLogin(null);
-                response.sendRedirect(go);
-            }
-            else if ("display".equals(mode)) {
-                // just need to display the user information
-                if (isDisplaying) {
-                    displayUserPage();
-                }
-                else {
-                    displayRootPage();
-                }
-            }
-            else {
-                modeOfficialOpenIDRequest(mode);
+            // the route says whether it changes the session, but showing a
+            // page also clears any error that was waiting to be displayed
+            boolean errorPending = aSession.hasError();
+            saveSession = (route.needs & WRITES_SESSION) != 0
+                    || ((route.needs & RENDERS_TEMPLATE) != 0 && errorPending);
+            if (Log.isEnabled(Log.Level.INFO)) {
+                Log.info("OpenIdLDAP: " + request.getRequestURL().toString().trim() + " @" + mode);
             }
+            route.handle(this);
         }
         catch (Exception e) {
+            failed = true;
+            // the error is recorded in the session for the next page
+            saveSession = true;
             try {
+                if (isDirectoryUnavailable(e)) {
+                    // nothing wrong with the request, the directory is down
+                    // or overloaded, so say so instead of showing an error
+                    Log.warn("OpenIDHandler: directory unavailable: " + e.getMessage());
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    response.setHeader("Retry-After", "30");
+                    streamTemplate("directoryUnavailable");
+                    return;
+                }
                 aSession.errMsg = e;
-                System.out.println("--- OpenIDHandler error --- " + (new Date()).toString());
-                e.printStackTrace();
-                OutputStreamWriter errOut = new OutputStreamWriter(System.out);
-                writeHtmlException(errOut, e);
-                System.out.println("--- ------------------  --- ");
-                response.sendRedirect(baseURL);
+                Log.error("OpenIDHandler error @" + mode, e);
+                sendRedirect(baseURL);
                 return;
 
             }
             catch (Exception eeeee) {
-                eeeee.printStackTrace();
+                Log.error("OpenIDHandler unable to report an error", eeeee);
+            }
+        }
+    }
+
+    private static boolean isDirectoryUnavailable(Exception e) {
+        Throwable t = e;
+        while (t != null) {
+            if (t instanceof DirectoryUnavailableException) {
+                return true;
             }
+            t = t.getCause();
         }
+        return false;
     }
 
     /**
@@ -517,7 +860,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         try {
             String option = reqParam("option");
             if (option.equals("Cancel")) {
-                response.sendRedirect("?openid.mode=display");
+                sendRedirect("?openid.mode=display");
                 return;
             }
             if (!aSession.regEmailConfirmed) {
@@ -547,7 +890,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
 
             authStyle.updateUserInfo(user, pwd);
 
-            boolean loginFlag = authStyle.authenticateUser(emailId, pwd);
+            boolean loginFlag = authenticate(emailId, pwd);
             if (loginFlag) {
                 setLogin(emailId);
             }
@@ -565,7 +908,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         }
         catch (Exception e) {
             aSession.errMsg = e;
-            response.sendRedirect("?openid.mode=registrationForm");
+            sendRedirect("?openid.mode=registrationForm");
             return;
         }
     }
@@ -584,7 +927,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         if (aSession.paramlist == null) {
             aSession.errMsg = new Exception(
                     "Session time out... too much time to login in and no longer have information about where to return to.");
-            response.sendRedirect(baseURL);
+            sendRedirect(baseURL);
             return;
         }
 
@@ -593,21 +936,18 @@ public class OpenIDHandler implements TemplateTokenRetriever {
 
         Message oidResp = manager.authResponse(authReq, loggedOpenId, loggedOpenId, true, false);
         if (oidResp instanceof DirectError) {
-            ServletOutputStream os = response.getOutputStream();
-            try {
-                String respString = oidResp.keyValueFormEncoding();
-                System.out.println("OpenIDHandler: DirectError = " + respString);
-                if (respString != null) {
-                    os.write(respString.getBytes());
-                }
-            }
-            finally {
-                os.close();
+            String respString = oidResp.keyValueFormEncoding();
+            Log.warn("OpenIDHandler: DirectError = " + respString);
+            PageBuffer page = new PageBuffer(256);
+            if (respString != null) {
+                page.write(respString.getBytes());
             }
+            pendingPage = page;
+            pendingRedirect = null;
         }
         else if (oidResp instanceof AuthFailure) {
-            System.out.println("OpenIDHandler: AuthFailure = " + oidResp.keyValueFormEncoding());
-            response.sendRedirect(oidResp.getDestinationUrl(true));
+            Log.info("OpenIDHandler: AuthFailure = " + oidResp.keyValueFormEncoding());
+            sendRedirect(oidResp.getDestinationUrl(true));
         }
         else {
             addExtension(authReq, oidResp);
@@ -615,8 +955,10 @@ public class OpenIDHandler implements TemplateTokenRetriever {
             aSession.return_to = "";
 
             String destUrl = oidResp.getDestinationUrl(true);
-            System.out.println("OpenIDHandler: SUCCESS RETURN = " + destUrl);
-            response.sendRedirect(destUrl);
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("OpenIDHandler: SUCCESS RETURN = " + destUrl);
+            }
+            sendRedirect(destUrl);
 
         }
 
@@ -657,33 +999,33 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         // first see if they pressed the Cancel key
         String op = reqParam("op");
         if (op.equals("Cancel")) {
-            response.sendRedirect("?openid.mode=display");
+            sendRedirect("?openid.mode=display");
             return;
         }
         String oldPwd = reqParam("oldPwd");
         String newPwd1 = reqParam("newPwd1");
         String newPwd2 = reqParam("newPwd2");
-        boolean flag = authStyle.authenticateUser(aSession.loggedUser(), oldPwd);
+        boolean flag = authenticate(aSession.loggedUser(), oldPwd);
         if (!flag) {
             aSession.errMsg = new Exception(
                     "Doesn't look like you gave the correct old password.  Required in order to change passwords.");
-            response.sendRedirect("?openid.mode=passwordView");
+            sendRedirect("?openid.mode=passwordView");
             return;
         }
         if (newPwd1.length() < 6) {
             aSession.errMsg = new Exception("New password must be 6 or more characters long.");
-            response.sendRedirect("?openid.mode=passwordView");
+            sendRedirect("?openid.mode=passwordView");
             return;
         }
         if (!newPwd1.equals(newPwd2)) {
             aSession.errMsg = new Exception(
                     "The new password values supplied do not match.  Try again");
-            response.sendRedirect("?openid.mode=passwordView");
+            sendRedirect("?openid.mode=passwordView");
             return;
         }
 
         authStyle.changePassword(aSession.loggedUser(), oldPwd, newPwd1);
-        response.sendRedirect("?openid.mode=display");
+        sendRedirect("?openid.mode=display");
     }
 
     private void modeResetPasswordAction() throws Exception {
@@ -691,7 +1033,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         // first see if they pressed the Cancel key
         String op = reqParam("op");
         if (op.equals("Cancel")) {
-            response.sendRedirect("?openid.mode=display");
+            sendRedirect("?openid.mode=display");
             return;
         }
         String userId = reqParam("userId");
@@ -702,7 +1044,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         }
 
         authStyle.setPassword(userId, newPwd);
-        response.sendRedirect("?openid.mode=display");
+        sendRedirect("?openid.mode=display");
     }
 
     private void modeLoginAction() throws Exception {
@@ -718,7 +1060,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         }
         enteredId = reqParam("entered-id");
         password = reqParam("password");
-        boolean flag = authStyle.authenticateUser(enteredId, password);
+        boolean flag = authenticate(enteredId, password);
         if (flag) {
             setLogin(enteredId);
             returnLoginSuccess();
@@ -726,7 +1068,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         }
         aSession.errMsg = new Exception("Unable to log you in to user id (" + enteredId
                 + ") with that password.  Please try again");
-        response.sendRedirect("?openid.mode=loginView");
+        sendRedirect("?openid.mode=loginView");
     }
 
     private void modeRegisterNewAction() throws Exception {
@@ -734,7 +1076,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         if (!emailHandler.validate(userId)) {
             aSession.errMsg = new Exception("The id supplied (" + userId
                     + ") does not appear to be a valid email address.");
-            response.sendRedirect("?openid.mode=register");
+            sendRedirect("?openid.mode=register");
             return;
         }
 
@@ -753,15 +1095,17 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         }
         catch (Exception e) {
             aSession.errMsg = e;
-            response.sendRedirect("?openid.mode=register");
+            sendRedirect("?openid.mode=register");
             return;
         }
 
         aSession.savedParams.clear();
         aSession.startRegistration(userId);
-        System.out.println("Email Registration regMagicNo :" + aSession.regMagicNo + ":");
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Email Registration regMagicNo :" + aSession.regMagicNo + ":");
+        }
         emailHandler.sendEmail(userId, 2, aSession.regMagicNo);
-        response.sendRedirect("?openid.mode=confirmationKey");
+        sendRedirect("?openid.mode=confirmationKey");
     }
 
     private void modeValidateKeyAction() throws Exception {
@@ -769,76 +1113,133 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         if (!registerEmail.equals(aSession.regEmail)) {
             aSession.errMsg = new Exception(
                     "Something is wrong, please start over.  Current implementation requires that you keep the browser open, that you enter the security key into the same browser requested from, and that you do this before requesting again.");
-            response.sendRedirect("?openid.mode=confirmationKey");
+            sendRedirect("?openid.mode=confirmationKey");
             return;
         }
         String confirmKey = reqParam("registeredEmailKey");
         if (!confirmKey.equals(aSession.regMagicNo)) {
             aSession.errMsg = new Exception(
                     "Confirmation Key entered is incorrect for the current attempt.  Make sure you are using the correct email message.");
-            response.sendRedirect("?openid.mode=confirmationKey");
+            sendRedirect("?openid.mode=confirmationKey");
             return;
         }
         aSession.regEmailConfirmed = true;
-        response.sendRedirect("?openid.mode=registrationForm");
+        sendRedirect("?openid.mode=registrationForm");
     }
 
-    private void modeOfficialOpenIDRequest(String mode) throws Exception {
-        // here start the 'official OpenID' start requests, and so this
-        // signifies the starting of a new request ... even if there is a
-        // request in progress, this will override it.
+    private void modeLogin() throws Exception {
+        // this takes the action of logging the user in, and returning
+        // if all OK
+        String enteredId = reqParam("entered-id");
+        String password = reqParam("password");
+        boolean flag = authenticate(enteredId, password);
+        if (flag) {
+            setLogin(enteredId);
+        }
+        else {
+            aSession.errMsg = new Exception("Unable to log you in to user id (" + enteredId
+                    + ") with that password.  Please try again.");
+        }
+        redirectToIdentityPage(defParam("display-id", ""));
+    }
+
+    // here start the 'official OpenID' start requests, and so these
+    // signify the starting of a new request ... even if there is a
+    // request in progress, this will override it.
+    private void modeCheckidSetup() throws Exception {
         aSession.reinit(request);
 
-        if ("checkid_setup".equals(mode)) {
-            if (!aSession.loggedIn()) {
-                response.sendRedirect("?openid.mode=loginView");
-                return;
-            }
+        if (!aSession.loggedIn()) {
+            sendRedirect("?openid.mode=loginView");
+            return;
+        }
 
-            requestedIdentity = new AddressParser(aSession.identity);
+        requestedIdentity = new AddressParser(aSession.identity);
 
-            if (!aSession.identity.equals(loggedOpenId) && !requestedIdentity.isRoot()) {
-                response.sendRedirect("?openid.mode=changeIdView");
-                return;
-            }
+        if (!aSession.identity.equals(loggedOpenId) && !requestedIdentity.isRoot()) {
+            sendRedirect("?openid.mode=changeIdView");
+            return;
+        }
+
+        returnLoginSuccess();
+    }
+
+    private void modeCheckidImmediate() throws Exception {
+        aSession.reinit(request);
 
+        if (!aSession.loggedIn()) {
+            returnLoginFailure();
+        }
+        else {
             returnLoginSuccess();
-            return;
         }
+    }
 
-        if ("checkid_immediate".equals(mode)) {
-            if (!aSession.loggedIn()) {
-                returnLoginFailure();
+    /**
+     * associate and check_authentication are sent directly by the relying
+     * party's server, not by the browser. They carry everything needed in
+     * their parameters, so no session is used for them at all.
+     */
+    private void modeDirectRequest() throws Exception {
+        if (Log.isEnabled(Log.Level.INFO)) {
+            Log.info("OpenIdLDAP: " + request.getRequestURL().toString().trim() + " @" + mode);
+        }
+        ParameterList params = new ParameterList(request.getParameterMap());
+        Message resMsg;
+        try {
+            if ("associate".equals(mode)) {
+                // --- process an association request ---
+                resMsg = manager.associationResponse(params);
             }
             else {
-                returnLoginSuccess();
+                // --- processing a verification request ---
+                resMsg = manager.verify(params);
+                if (resMsg instanceof VerifyResponse
+                        && ((VerifyResponse) resMsg).isSignatureVerified()) {
+                    resMsg = checkReplay(params, (VerifyResponse) resMsg);
+                }
             }
-            return;
-        }
-
-        Message resMsg;
-        String responseText;
-
-        if ("associate".equals(mode)) {
-            // --- process an association request ---
-            resMsg = manager.associationResponse(aSession.paramlist);
-            responseText = resMsg.keyValueFormEncoding();
-        }
-        else if ("check_authentication".equals(mode)) {
-            // --- processing a verification request ---
-            resMsg = manager.verify(aSession.paramlist);
-            responseText = resMsg.keyValueFormEncoding();
         }
-        else {
-            throw new Exception("Unable to handle request for mode: " + mode);
+        catch (Exception e) {
+            failed = true;
+            Log.warn("OpenIDHandler: failed direct request " + mode + ": " + e);
+            resMsg = DirectError.createDirectError(e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
         }
 
-        // return the result to the user
+        // return the result to the relying party
+        setTimingHeader();
         Writer out = response.getWriter();
-        out.write(responseText);
+        out.write(resMsg.keyValueFormEncoding());
         out.flush();
     }
 
+    /**
+     * openid4java removes the private association once it has verified an
+     * assertion with it, which already stops most replays. The nonce store
+     * is a second check on top of that, see NonceStore. Only nonces of
+     * verified assertions are recorded, so nobody can fill the store with
+     * made up ones.
+     */
+    private VerifyResponse checkReplay(ParameterList params, VerifyResponse verified)
+            throws Exception {
+        String nonce = params.getParameterValue("openid.response_nonce");
+        if (nonce == null) {
+            // OpenID 1.x assertions have no nonce to check
+            return verified;
+        }
+        String handle = params.getParameterValue("openid.assoc_handle");
+        if (nonceStore.checkAndRecord(nonce, handle)) {
+            return verified;
+        }
+        failed = true;
+        Log.warn("OpenIDHandler: refused check_authentication of a replayed or expired nonce "
+                + nonce + " from " + request.getRemoteAddr());
+        VerifyResponse refused = VerifyResponse.createVerifyResponse(verified.isVersion2());
+        refused.setSignatureVerified(false);
+        return refused;
+    }
+
     /**
      * create the authentication response message with false == not
      * authenticated
@@ -853,7 +1254,7 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         if (aSession.paramlist == null) {
             aSession.errMsg = new Exception(
                     "Session time out... too much time to login in and no longer have information about where to return to.");
-            response.sendRedirect(baseURL);
+            sendRedirect(baseURL);
             return;
         }
 
@@ -869,8 +1270,36 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         else {
             dest = aSession.return_to + "&" + urlTail;
         }
-        System.out.println("OpenIdLDAP: FAILURE RETURN = " + dest);
-        response.sendRedirect(dest);
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("OpenIdLDAP: FAILURE RETURN = " + dest);
+        }
+        sendRedirect(dest);
+    }
+
+    /**
+     * Goes to the identity page of the id entered, or of the only id that
+     * matches it. When several ids match, they are listed for the user to
+     * choose from instead of picking one of them.
+     */
+    private void modeLookup() throws Exception {
+        String enteredId = reqParam("entered-id");
+        String foundId = authStyle.searchForID(enteredId);
+        if (foundId == null) {
+            List<String> candidates = authStyle.searchCandidates(enteredId);
+            if (candidates.size() > 1) {
+                StringBuffer list = new StringBuffer();
+                for (String candidate : candidates) {
+                    if (list.length() > 0) {
+                        list.append(", ");
+                    }
+                    list.append(candidate);
+                }
+                aSession.errMsg = new Exception("More than one id matches (" + enteredId
+                        + "), please enter one of these in full: " + list);
+                saveSession = true;
+            }
+        }
+        redirectToIdentityPage(foundId);
     }
 
     private void redirectToIdentityPage(String gotoId) throws Exception {
@@ -878,7 +1307,57 @@ public class OpenIDHandler implements TemplateTokenRetriever {
             gotoId = "";
         }
         String dest = baseURL + gotoId;
-        response.sendRedirect(dest);
+        sendRedirect(dest);
+    }
+
+    /**
+     * checks a password with the authStyle, counting the outcome
+     */
+    private boolean authenticate(String userId, String password) throws Exception {
+        long authStart = System.nanoTime();
+        CredentialCheckEvent event = new CredentialCheckEvent();
+        event.begin();
+        String outcome = "error";
+        try {
+            boolean flag = authStyle.authenticateUser(userId, password);
+            outcome = flag ? "accepted" : "rejected";
+            Metrics.countLogin(flag);
+            return flag;
+        }
+        finally {
+            event.report(mode, authStyle.getStyleIndicator(), outcome);
+            timer.add(RequestTimer.Phase.auth, System.nanoTime() - authStart);
+        }
+    }
+
+    /**
+     * the redirect is sent once the session has been saved, and replaces any
+     * page made before it
+     */
+    private void sendRedirect(String location) throws Exception {
+        pendingRedirect = location;
+        pendingPage = null;
+    }
+
+    private void sendPendingResponse() throws Exception {
+        if (pendingRedirect != null) {
+            setTimingHeader();
+            Metrics.countRedirect();
+            response.sendRedirect(pendingRedirect);
+        }
+        else if (pendingPage != null) {
+            setTimingHeader();
+            response.setContentLength(pendingPage.size());
+            ServletOutputStream out = response.getOutputStream();
+            pendingPage.writeTo(out);
+            out.flush();
+        }
+    }
+
+    private void setTimingHeader() {
+        if (serverTiming) {
+            response.setHeader("Server-Timing", timer.toServerTiming());
+        }
     }
 
     /**
@@ -952,45 +1431,74 @@ public class OpenIDHandler implements TemplateTokenRetriever {
     }
 
     public void serveUpAsset(String resourceName) throws Exception {
-        ServletContext sc = session.getServletContext();
-        String path = sc.getRealPath("/$/" + resourceName);
-
-        TemplateStreamer.streamRawFile(response.getOutputStream(), new File(path));
+        assetHandler.serve(resourceName, request, response);
     }
 
-    private void streamTemplate(String fileName) throws Exception {
-        javax.servlet.ServletContext sc2 = session.getServletContext();
-        File ctxPath = new File(sc2.getRealPath("/"));
+    /**
+     * The counters and timings in Prometheus text format. Only a logged in
+     * administrator, or a scraper with the metricsToken, gets them, everyone
+     * else sees nothing there at all.
+     */
+    private void serveMetrics() throws Exception {
+        if (!mayReadMetrics()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        Metrics.writePrometheus(response.getWriter(), getRoutes());
+    }
 
-        // fist check to see if a special auth style specific version exists
-        if (authStyle != null) {
-            String testName = fileName + "." + authStyle.getStyleIndicator() + ".htm";
-            File templateFile = new File(ctxPath, testName);
-            if (templateFile.exists()) {
-                streamTemplateCore(templateFile);
-                return;
-            }
+    /**
+     * Only an existing session is looked up here, nothing is created or
+     * saved, so that requests with made up cookies can not add sessions.
+     */
+    private boolean mayReadMetrics() throws Exception {
+        if (Metrics.hasValidToken(request.getHeader("Authorization"))) {
+            return true;
         }
+        String sessionId = findCookieValue("SSOFISession");
+        if (sessionId == null || sessionId.length() < 10 || sHand == null) {
+            return false;
+        }
+        AuthSession existing = sHand.getAuthSessionIfExists(sessionId);
+        return existing != null && existing.loggedIn()
+                && authStyle.isAdmin(existing.loggedUser());
+    }
 
-        // if not, use the generic one
-        String testName2 = fileName + ".htm";
-        File templateFile2 = new File(ctxPath, testName2);
-        if (templateFile2.exists()) {
-            streamTemplateCore(templateFile2);
-            return;
+    private void streamTemplate(String fileName) throws Exception {
+        String style = null;
+        if (authStyle != null) {
+            style = authStyle.getStyleIndicator();
         }
-        throw new Exception("Can't find the template file: " + templateFile2.toString());
+        streamTemplateCore(templateResolver.resolve(fileName, style));
     }
 
     private void streamTemplateCore(File templateFile) throws Exception {
         try {
+            // the whole page is made before any of it is sent, so that
+            // the length is known, and an error can still show a clean page
+            CompiledTemplate template = TemplateStreamer.getTemplate(templateFile, "UTF-8",
+                    pageTokenNames);
+            long renderStart = System.nanoTime();
+            TemplateRenderEvent event = new TemplateRenderEvent();
+            event.begin();
+            PageBuffer page = new PageBuffer(template.getSizeHint());
+            template.render(page, this);
             response.setContentType("text/html;charset=UTF-8");
-            Writer out = response.getWriter();
-            InputStream is = new FileInputStream(templateFile);
-            Reader isr = new InputStreamReader(is, "UTF-8");
-            TemplateStreamer.streamTemplate(out, isr, this);
-            isr.close();
-            out.flush();
+            boolean gzipped = false;
+            if (pageGzipMinBytes > 0 && page.size() >= pageGzipMinBytes) {
+                response.setHeader("Vary", "Accept-Encoding");
+                if (AssetHandler.acceptsGzip(request)) {
+                    page = page.gzip(Deflater.BEST_SPEED);
+                    response.setHeader("Content-Encoding", "gzip");
+                    gzipped = true;
+                }
+            }
+            event.report(templateFile.getName(), mode, page.size(), gzipped);
+            timer.add(RequestTimer.Phase.render, System.nanoTime() - renderStart);
+            pendingPage = page;
+            pendingRedirect = null;
 
             // clear out any recorded error now that it has been displayed
             aSession.clearError();
@@ -1001,65 +1509,95 @@ public class OpenIDHandler implements TemplateTokenRetriever {
         }
     }
 
+    /**
+     * All the tokens that may be used in the templates. Templates are checked
+     * against this list when they are compiled, and each token is then found
+     * by its position in the list.
+     */
+    private enum PageToken {
+        thisPage, fullName, emailAddress, id, loggedUserId, loggedOpenId, reqUserId,
+        reqOpenId, addrOpenId, addrId, registeredEmailId, root, Note, go, return_to,
+        return_to_app_name, assoc_handle, serverError, userError, captcha, inputEmail
+    }
+
+    private static final PageToken[] pageTokens = PageToken.values();
+    private static final String[] pageTokenNames = new String[pageTokens.length];
+    static {
+        for (int i = 0; i < pageTokens.length; i++) {
+            pageTokenNames[i] = pageTokens[i].name();
+        }
+    }
+
     /**
      * Given a named token, write out the corresponding value
      */
     public void writeTokenValue(Writer out, String tokenName) throws Exception {
-        if ("thisPage".equals(tokenName)) {
-            writeHtml(out, baseURL);
+        for (int i = 0; i < pageTokenNames.length; i++) {
+            if (pageTokenNames[i].equals(tokenName)) {
+                writeTokenValue(out, i);
+                return;
+            }
         }
-        else if ("fullName".equals(tokenName)) {
+        writeHtml(out, "<" + tokenName + ">");
+    }
+
+    /**
+     * Given the position of a token in pageTokenNames, write out the
+     * corresponding value
+     */
+    public void writeTokenValue(Writer out, int tokenId) throws Exception {
+        switch (pageTokens[tokenId]) {
+        case thisPage:
+            writeHtml(out, baseURL);
+            break;
+        case fullName:
             if (displayInfo != null) {
                 writeHtml(out, displayInfo.fullName);
             }
-        }
-        else if ("emailAddress".equals(tokenName)) {
+            break;
+        case emailAddress:
             if (displayInfo != null) {
                 writeHtml(out, displayInfo.emailAddress);
             }
-        }
-        else if ("id".equals(tokenName)) {
+            break;
+        case id:
             if (displayInfo != null) {
                 writeHtml(out, displayInfo.id);
             }
-        }
-        else if ("loggedUserId".equals(tokenName)) {
+            break;
+        case loggedUserId:
             if (aSession.loggedIn()) {
                 writeHtml(out, aSession.loggedUser());
             }
-        }
-        else if ("loggedOpenId".equals(tokenName)) {
+            break;
+        case loggedOpenId:
             writeHtml(out, loggedOpenId);
-        }
-        else if ("reqUserId".equals(tokenName)) {
+            break;
+        case reqUserId:
             if (requestedIdentity != null) {
                 writeHtml(out, requestedIdentity.getUserId());
             }
-        }
-        else if ("reqOpenId".equals(tokenName)) {
+            break;
+        case reqOpenId:
             if (requestedIdentity != null) {
                 writeHtml(out, requestedIdentity.getOpenId());
             }
-        }
-        else if ("addrOpenId".equals(tokenName)) {
-            if (addressedUserId != null) {
-                writeHtml(out, addressedUserId);
-            }
-        }
-        else if ("addrId".equals(tokenName)) {
+            break;
+        case addrOpenId:
+        case addrId:
             if (addressedUserId != null) {
                 writeHtml(out, addressedUserId);
             }
-        }
-        else if ("registeredEmailId".equals(tokenName)) {
+            break;
+        case registeredEmailId:
             if (aSession != null) {
                 writeHtml(out, aSession.regEmail);
             }
-        }
-        else if ("root".equals(tokenName)) {
+            break;
+        case root:
             writeHtml(out, baseURL);
-        }
-        else if ("Note".equals(tokenName)) {
+            break;
+        case Note:
             String note = "";
             if (isLDAPMode) {
                 note = "The user name and password that you "
@@ -1073,45 +1611,41 @@ public class OpenIDHandler implements TemplateTokenRetriever {
                         + "to reset your password.";
             }
             writeHtml(out, note);
-        }
-        else if ("go".equals(tokenName)) {
+            break;
+        case go:
             writeHtml(out, paramGo);
-        }
-        else if ("return_to".equals(tokenName)) {
-
+            break;
+        case return_to:
             writeHtml(out, aSession.return_to);
-        }
-        else if ("return_to_app_name".equals(tokenName)) {
+            break;
+        case return_to_app_name:
             String return_to_app_name = aSession.return_to.substring(aSession.return_to
                     .lastIndexOf("/") + 1);
             writeHtml(out, return_to_app_name);
-        }
-        else if ("assoc_handle".equals(tokenName)) {
-
+            break;
+        case assoc_handle:
             writeHtml(out, assoc_handle);
-        }
-        else if ("serverError".equals(tokenName)) {
+            break;
+        case serverError:
             writeHtmlException(out, initFailure);
-        }
-        else if ("userError".equals(tokenName)) {
+            break;
+        case userError:
             writeHtmlException(out, aSession.errMsg);
-        }
-        else if ("captcha".equals(tokenName)) {
+            break;
+        case captcha:
             String cerr = null;
             if (aSession.errMsg != null) {
                 cerr = aSession.errMsg.getMessage();
             }
             out.write(securityHandler.getCaptchaHtML(cerr));
-        }
-        else if ("inputEmail".equals(tokenName)) {
+            break;
+        case inputEmail:
             String pinputEmail = aSession.getSavedParameter("registerEmail");
             if (pinputEmail != null) {
                 String tokValue = "value=" + pinputEmail;
                 writeHtml(out, tokValue);
             }
-        }
-        else {
-            writeHtml(out, "<" + tokenName + ">");
+            break;
         }
     }
 
@@ -1165,13 +1699,12 @@ public class OpenIDHandler implements TemplateTokenRetriever {
     public String getSSOFISessionId() {
         String sessionId = findCookieValue("SSOFISession");
         if (sessionId == null || sessionId.length() < 10) {
-            // if our cookie does not have a value, then just take the current
-            // session
-            // id and use that. The value does not matter so much, just needs to
-            // be unique.
-            // However, this cookie will have a wider scope than normal Tomcat
+            // if our cookie does not have a value, then make up a new one.
+            // It must be unique and impossible to guess, because it is all
+            // that identifies a logged in user.
+            // This cookie will have a wider scope than normal Tomcat
             // cookies.
-            sessionId = "S" + session.getId();
+            sessionId = "S" + RandomSource.newLetters(24);
         }
         Cookie previousId = new Cookie("SSOFISession", sessionId);
         previousId.setMaxAge(30000); // about 6 hours
@@ -66,6 +66,10 @@ public class OpenIDServlet extends HttpServlet {
         OpenIDHandler.init(config);
     }
 
+    public void destroy() {
+        OpenIDHandler.destroy();
+    }
+
     private void handleException(Exception e, HttpServletRequest req, HttpServletResponse resp) {
         try {
             Writer out = resp.getWriter();
@@ -77,7 +81,7 @@ public class OpenIDServlet extends HttpServlet {
             out.write("<a href=\"../main.jsp\" title=\"Access the main page\">Main</a>\n");
             out.write("<hr/>\n<pre>");
             e.printStackTrace(new PrintWriter(new HTMLWriter(out)));
-            e.printStackTrace(new PrintWriter(System.out));
+            Log.error("OpenIDServlet: " + req.getMethod() + " " + req.getRequestURL(), e);
             out.write("</pre></body></html>\n");
             out.flush();
         }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Collects a whole page as UTF-8 bytes in memory, so that it can be sent in
+ * one piece with a Content-Length.
+ *
+ * Bytes that are already encoded, like the literal parts of a compiled
+ * template, are copied in directly. Text, like the values of tokens, is
+ * written through getWriter(), which encodes each character straight into
+ * the same buffer. That writer has no buffer of its own, so bytes and text
+ * can be mixed freely without flushing.
+ *
+ * Not thread safe: a page buffer belongs to one request.
+ */
+public class PageBuffer extends OutputStream {
+
+    private byte[] buf;
+    private int count = 0;
+    private final Writer writer = new Utf8Writer();
+
+    public PageBuffer(int initialSize) {
+        buf = new byte[Math.max(initialSize, 256)];
+    }
+
+    public Writer getWriter() {
+        return writer;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * sends everything collected so far to the stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * a copy of the bytes collected so far
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Returns a new buffer with the content compressed in gzip format. Level
+     * is a java.util.zip.Deflater level: BEST_SPEED for pages made on each
+     * request, BEST_COMPRESSION for things compressed once and kept.
+     */
+    public PageBuffer gzip(final int level) throws IOException {
+        PageBuffer zipped = new PageBuffer(count / 3);
+        GZIPOutputStream gzo = new GZIPOutputStream(zipped, 8192) {
+            {
+                def.setLevel(level);
+            }
+        };
+        gzo.write(buf, 0, count);
+        gzo.finish();
+        gzo.close();
+        return zipped;
+    }
+
+    public void write(int b) {
+        put(b);
+    }
+
+    private void put(int b) {
+        if (count == buf.length) {
+            grow(1);
+        }
+        buf[count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        if (count + len > buf.length) {
+            grow(len);
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void grow(int needed) {
+        byte[] newBuf = new byte[Math.max(buf.length * 2, count + needed)];
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        buf = newBuf;
+    }
+
+    /**
+     * Encodes characters as UTF-8 directly into the page. A surrogate pair
+     * may be split across two write calls, so the first half is held until
+     * the second arrives.
+     */
+    private class Utf8Writer extends Writer {
+        private char highSurrogate = 0;
+
+        public void write(int c) {
+            encode((char) c);
+        }
+
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                encode(cbuf[i]);
+            }
+        }
+
+        public void write(String str, int off, int len) {
+            if (count + len > buf.length) {
+                grow(len);
+            }
+            for (int i = off; i < off + len; i++) {
+                char c = str.charAt(i);
+                if (c < 0x80 && highSurrogate == 0 && count < buf.length) {
+                    buf[count++] = (byte) c;
+                }
+                else {
+                    encode(c);
+                }
+            }
+        }
+
+        private void encode(char c) {
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    put(0xF0 | (cp >> 18));
+                    put(0x80 | ((cp >> 12) & 0x3F));
+                    put(0x80 | ((cp >> 6) & 0x3F));
+                    put(0x80 | (cp & 0x3F));
+                    return;
+                }
+                // a lone half of a pair can not be encoded
+                put('?');
+            }
+            if (c < 0x80) {
+                put((int) c);
+            }
+            else if (c < 0x800) {
+                put(0xC0 | (c >> 6));
+                put(0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            }
+            else if (Character.isLowSurrogate(c)) {
+                put('?');
+            }
+            else {
+                put(0xE0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3F));
+                put(0x80 | (c & 0x3F));
+            }
+        }
+
+        public void flush() {
+            // nothing is held back, except half of a surrogate pair
+        }
+
+        public void close() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                put('?');
+            }
+        }
+    }
+}
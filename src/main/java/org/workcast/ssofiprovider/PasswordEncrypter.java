@@ -19,12 +19,11 @@
  */
 package org.workcast.ssofiprovider;
 
-import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Random;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 
 /**
  * This passord encrypter class does the job of both salting the password and
@@ -40,42 +39,340 @@ public class PasswordEncrypter {
     // The higher the number of iterations the more
     // expensive computing the hash is for us
     // and also for a brute force attack.
-    private static final int iterations = 10;
+    // This is what the original unversioned "salt$hash" values used.
+    private static final int legacyIterations = 10;
+    private static final String legacyAlgorithm = "PBKDF2WithHmacSHA1";
+    private static final String sha256Algorithm = "PBKDF2WithHmacSHA256";
     private static final int saltLen = 32; // bytes
     private static final int desiredKeyLen = 256;
 
+    /**
+     * Marks the versioned storage format, which is
+     *
+     * $v1$algorithm$iterations$salt$hash
+     *
+     * so that the cost can be raised later without losing the ability to
+     * check passwords stored at the old cost. Values without this prefix are
+     * the original salt$hash format.
+     */
+    private static final String versionPrefix = "$v1$";
+
+    // settings used for new hashes, see calibrate()
+    private static volatile String algorithm = pickAlgorithm();
+    private static volatile int iterations = 10000;
+
     /**
      * Computes a salted PBKDF2 hash of given plaintext password suitable for
      * storing in a user profile.
      */
     public static String getSaltedHash(String password) throws Exception {
-        byte[] salt = SecureRandom.getInstance("SHA1PRNG").generateSeed(saltLen);
-        // store the salt with the password
-        return hexEncode(salt) + "$" + hash(password, salt);
+        byte[] salt = new byte[saltLen];
+        RandomSource.nextBytes(salt);
+        String alg = algorithm;
+        int iter = iterations;
+        PasswordHashEvent event = new PasswordHashEvent();
+        event.begin();
+        String hashed = hash(password, salt, alg, iter);
+        event.report("hash", alg, iter, "ok");
+        // store the salt and the cost with the password
+        return versionPrefix + alg + "$" + iter + "$" + hexEncode(salt) + "$" + hashed;
     }
 
     /**
      * Checks whether given plaintext password corresponds to a stored salted
      * hash of the password.
+     *
+     * This is on the login path, so it works on the stored string in place and
+     * in buffers kept for each thread, and compares the raw bytes in a time
+     * that does not depend on where they first differ.
      */
     public static boolean check(String password, String stored) throws Exception {
-        String[] saltAndPass = stored.split("\\$");
-        if (saltAndPass.length != 2) {
+        HashContext ctx = contexts.get();
+        String alg;
+        int iter;
+        int saltStart;
+        int hashStart;
+        if (stored.startsWith(versionPrefix)) {
+            int algStart = versionPrefix.length();
+            int iterStart = stored.indexOf('$', algStart) + 1;
+            saltStart = stored.indexOf('$', iterStart) + 1;
+            hashStart = stored.indexOf('$', saltStart) + 1;
+            if (iterStart == 0 || saltStart == 0 || hashStart == 0
+                    || stored.indexOf('$', hashStart) >= 0) {
+                return false;
+            }
+            alg = algorithmName(stored, algStart, iterStart - 1);
+            iter = parseCount(stored, iterStart, saltStart - 1);
+            if (iter <= 0) {
+                return false;
+            }
+        }
+        else {
+            saltStart = 0;
+            hashStart = stored.indexOf('$') + 1;
+            if (hashStart == 0 || stored.indexOf('$', hashStart) >= 0) {
+                return false;
+            }
+            alg = legacyAlgorithm;
+            iter = legacyIterations;
+        }
+
+        int saltBytes = (hashStart - 1 - saltStart) / 2;
+        int hashBytes = (stored.length() - hashStart) / 2;
+        if (hashBytes != ctx.expected.length) {
             return false;
         }
-        String hashOfInput = hash(password, hexDecode(saltAndPass[0]));
-        return hashOfInput.equals(saltAndPass[1]);
+        byte[] salt = ctx.saltBuffer(saltBytes);
+        hexDecode(stored, saltStart, saltBytes, salt);
+        hexDecode(stored, hashStart, hashBytes, ctx.expected);
+        PasswordHashEvent event = new PasswordHashEvent();
+        event.begin();
+        derive(ctx, password, salt, saltBytes, alg, iter, ctx.derived);
+
+        int diff = 0;
+        for (int i = 0; i < hashBytes; i++) {
+            diff |= ctx.expected[i] ^ ctx.derived[i];
+        }
+        event.report("check", alg, iter, diff == 0 ? "match" : "mismatch");
+        return diff == 0;
+    }
+
+    /**
+     * Tells whether a stored value was made with a weaker algorithm or a lower
+     * iteration count than is used for new hashes now. After a successful
+     * check, such a value should be replaced with a new hash of the password.
+     */
+    public static boolean needsRehash(String stored) {
+        if (!stored.startsWith(versionPrefix)) {
+            return true;
+        }
+        String[] parts = stored.substring(versionPrefix.length()).split("\\$");
+        if (parts.length != 4) {
+            return true;
+        }
+        try {
+            return !parts[0].equals(algorithm) || Integer.parseInt(parts[1]) < iterations;
+        }
+        catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Times the hash on this machine and sets the iteration count for new
+     * hashes so that one hash takes about targetMillis, but never fewer than
+     * minIterations. Takes a fraction of a second. Returns the count chosen.
+     */
+    public static int calibrate(long targetMillis, int minIterations) throws Exception {
+        int sampleIterations = 2000;
+        byte[] salt = new byte[saltLen];
+        String alg = algorithm;
+        // the first few runs include class loading and JIT compiling
+        for (int i = 0; i < 3; i++) {
+            hash("calibration", salt, alg, sampleIterations);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long startTime = System.nanoTime();
+            hash("calibration", salt, alg, sampleIterations);
+            best = Math.min(best, System.nanoTime() - startTime);
+        }
+        long perIteration = Math.max(1, best / sampleIterations);
+        long wanted = targetMillis * 1000000L / perIteration;
+        int chosen = (int) Math.max(minIterations, Math.min(wanted, Integer.MAX_VALUE));
+        iterations = chosen;
+        return chosen;
+    }
+
+    public static String getAlgorithm() {
+        return algorithm;
+    }
+
+    public static int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * SHA-256 is preferred, SHA-1 is what the first stored values used
+     */
+    private static String pickAlgorithm() {
+        try {
+            Mac.getInstance("HmacSHA256");
+            return sha256Algorithm;
+        }
+        catch (Exception e) {
+            return legacyAlgorithm;
+        }
+    }
+
+    private static String hash(String password, byte[] salt, String alg, int iter)
+            throws Exception {
+        byte[] key = new byte[desiredKeyLen / 8];
+        derive(contexts.get(), password, salt, salt.length, alg, iter, key);
+        return hexEncode(key);
+    }
+
+    /**
+     * PBKDF2 as in RFC 2898, the same as SecretKeyFactory "PBKDF2WithHmac..."
+     * produces, but on the thread's own Mac, and writing each round into the
+     * thread's buffers, instead of looking up a new SecretKeyFactory and
+     * making new key objects for every password.
+     * cf. http://www.unlimitednovelty.com/2012/03/dont-use-bcrypt.html
+     */
+    private static void derive(HashContext ctx, String password, byte[] salt, int saltBytes,
+            String alg, int iter, byte[] out) throws Exception {
+        Mac mac = ctx.getMac(alg);
+        int hLen = mac.getMacLength();
+        PasswordKey key = new PasswordKey(password.getBytes("UTF-8"));
+        try {
+            mac.init(key);
+        }
+        finally {
+            key.clear();
+        }
+
+        byte[] u = ctx.blockBuffer(hLen);
+        byte[] t = ctx.sumBuffer(hLen);
+        int done = 0;
+        for (int blockNum = 1; done < out.length; blockNum++) {
+            mac.update(salt, 0, saltBytes);
+            mac.update((byte) (blockNum >>> 24));
+            mac.update((byte) (blockNum >>> 16));
+            mac.update((byte) (blockNum >>> 8));
+            mac.update((byte) blockNum);
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, t, 0, hLen);
+            for (int i = 1; i < iter; i++) {
+                mac.update(u, 0, hLen);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < hLen; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+            int len = Math.min(hLen, out.length - done);
+            System.arraycopy(t, 0, out, done, len);
+            done += len;
+        }
     }
 
-    // using PBKDF2 from Sun, an alternative is https://github.com/wg/scrypt
-    // cf. http://www.unlimitednovelty.com/2012/03/dont-use-bcrypt.html
-    private static String hash(String password, byte[] salt) throws Exception {
-        SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        SecretKey key = f.generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations,
-                desiredKeyLen));
-        return hexEncode(key.getEncoded());
+    /**
+     * The password as the raw key of the HMAC. SecretKeySpec would do, but it
+     * refuses an empty key, and an empty password still has to be checked
+     * like any other.
+     */
+    private static class PasswordKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+        private final byte[] key;
+
+        PasswordKey(byte[] key) {
+            this.key = key;
+        }
+
+        public String getAlgorithm() {
+            return "RAW";
+        }
+
+        public String getFormat() {
+            return "RAW";
+        }
+
+        public byte[] getEncoded() {
+            return key.clone();
+        }
+
+        void clear() {
+            Arrays.fill(key, (byte) 0);
+        }
     }
 
+    /**
+     * returns one of the constant names if it matches, so that checking does
+     * not need to make a new string for it
+     */
+    private static String algorithmName(String stored, int start, int end) {
+        int len = end - start;
+        if (len == sha256Algorithm.length() && stored.startsWith(sha256Algorithm, start)) {
+            return sha256Algorithm;
+        }
+        if (len == legacyAlgorithm.length() && stored.startsWith(legacyAlgorithm, start)) {
+            return legacyAlgorithm;
+        }
+        return stored.substring(start, end);
+    }
+
+    private static int parseCount(String stored, int start, int end) {
+        if (end <= start || end - start > 9) {
+            return -1;
+        }
+        int val = 0;
+        for (int i = start; i < end; i++) {
+            char ch = stored.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            val = val * 10 + (ch - '0');
+        }
+        return val;
+    }
+
+    /**
+     * The Mac and the buffers that one thread uses for checking passwords.
+     * Mac objects are not thread safe, but are costly to look up, so each
+     * thread keeps its own.
+     */
+    private static class HashContext {
+        private Mac mac;
+        private String macAlgorithm;
+        private byte[] salt = new byte[saltLen];
+        private byte[] block = new byte[32];
+        private byte[] sum = new byte[32];
+        final byte[] expected = new byte[desiredKeyLen / 8];
+        final byte[] derived = new byte[desiredKeyLen / 8];
+
+        Mac getMac(String alg) throws Exception {
+            if (!alg.equals(macAlgorithm)) {
+                if (sha256Algorithm.equals(alg)) {
+                    mac = Mac.getInstance("HmacSHA256");
+                }
+                else if (legacyAlgorithm.equals(alg)) {
+                    mac = Mac.getInstance("HmacSHA1");
+                }
+                else {
+                    throw new Exception("Unknown password hash algorithm: " + alg);
+                }
+                macAlgorithm = alg;
+            }
+            return mac;
+        }
+
+        byte[] saltBuffer(int len) {
+            if (salt.length < len) {
+                salt = new byte[len];
+            }
+            return salt;
+        }
+
+        byte[] blockBuffer(int len) {
+            if (block.length < len) {
+                block = new byte[len];
+            }
+            return block;
+        }
+
+        byte[] sumBuffer(int len) {
+            if (sum.length < len) {
+                sum = new byte[len];
+            }
+            return sum;
+        }
+    }
+
+    private static final ThreadLocal<HashContext> contexts = new ThreadLocal<HashContext>() {
+        protected HashContext initialValue() {
+            return new HashContext();
+        }
+    };
+
     /**
      * generates a hex code value using letters A=0 thru P=15 Yes, base 64 would
      * be more compact, 3/4 this size, but storage size of the key is not any
@@ -112,6 +409,18 @@ public class PasswordEncrypter {
         return res;
     }
 
+    /**
+     * decodes count bytes of hex digits starting at offset start of the
+     * string, into the start of the given array
+     */
+    private static void hexDecode(String hexDigits, int start, int count, byte[] dest) {
+        for (int i = 0; i < count; i++) {
+            int v1 = hexDigits.charAt(start + i * 2) - 'A';
+            int v2 = hexDigits.charAt(start + i * 2 + 1) - 'A';
+            dest[i] = (byte) ((v1 * 16) + v2);
+        }
+    }
+
     public static void testThis() throws Exception {
         Random rand = new Random();
         byte[] initialTest = new byte[] { 0, 1, 2, 3, 4 };
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for one run of PasswordEncrypter, on whatever thread
+ * it was done. See SessionEvent for how these are used.
+ */
+@Name("org.workcast.ssofi.PasswordHash")
+@Label("Password Hash")
+@Category("SSOFI")
+@Description("Computing a password hash, either to check a password or to store a new one")
+final class PasswordHashEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    @Description("check or hash")
+    String operation;
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Iterations")
+    int iterations;
+
+    @Label("Outcome")
+    @Description("match or mismatch for a check, ok for a new hash")
+    String outcome;
+
+    void report(String operation, String algorithm, int iterations, String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.algorithm = algorithm;
+            this.iterations = iterations;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Command line tool that brings all the passwords in a users.xml file up to
+ * the current hash settings. Run it while the server is stopped:
+ *
+ * java org.workcast.ssofiprovider.PasswordMigrationTool users.xml
+ *     [-config config.txt] [-threads n] [-resetWeak]
+ *
+ * Short "transition hack" passwords are plain text, so they are hashed with
+ * the current settings. Hashes made with older settings can not be redone
+ * without the password, so they are normally left to be upgraded at the
+ * next login, but with -resetWeak those users are marked resetRequired
+ * instead. Users with no usable password value at all are always marked
+ * resetRequired, and have to set a new password by email.
+ *
+ * The file is read and written as a stream, one user at a time, while a fork
+ * join pool computes the hashes of the users in between. The result goes to
+ * a temporary file which then replaces users.xml in one step, after the old
+ * file is copied to users.xml.bak.
+ */
+public class PasswordMigrationTool {
+
+    // how many users may be waiting for their hash at one time
+    private static final int usersInFlight = 1000;
+
+    private final ForkJoinPool pool;
+    private final boolean resetWeak;
+    private final XMLEventFactory events = XMLEventFactory.newInstance();
+
+    private int userCount = 0;
+    private int hashedCount = 0;
+    private int resetCount = 0;
+    private int weakCount = 0;
+
+    public PasswordMigrationTool(int threads, boolean resetWeak) {
+        this.pool = new ForkJoinPool(threads);
+        this.resetWeak = resetWeak;
+    }
+
+    public static void main(String[] args) {
+        try {
+            File userFile = null;
+            Properties configSettings = new Properties();
+            int threads = Runtime.getRuntime().availableProcessors();
+            boolean resetWeak = false;
+            for (int i = 0; i < args.length; i++) {
+                if ("-config".equals(args[i]) && i + 1 < args.length) {
+                    InputStream is = new FileInputStream(args[++i]);
+                    try {
+                        configSettings.load(is);
+                    }
+                    finally {
+                        is.close();
+                    }
+                }
+                else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                else if ("-resetWeak".equals(args[i])) {
+                    resetWeak = true;
+                }
+                else if (userFile == null && !args[i].startsWith("-")) {
+                    userFile = new File(args[i]);
+                }
+                else {
+                    throw new Exception("Don't understand the argument: " + args[i]);
+                }
+            }
+            if (userFile == null || !userFile.exists()) {
+                throw new Exception("Usage: PasswordMigrationTool users.xml "
+                        + "[-config config.txt] [-threads n] [-resetWeak]");
+            }
+
+            int targetMillis = Integer.parseInt(configSettings.getProperty("hashTargetMillis",
+                    "100").trim());
+            int minIterations = Integer.parseInt(configSettings.getProperty(
+                    "hashMinIterations", "10000").trim());
+            int iterations = PasswordEncrypter.calibrate(targetMillis, minIterations);
+            System.out.println("New password hashes use " + PasswordEncrypter.getAlgorithm()
+                    + " with " + iterations + " iterations, on " + threads + " threads");
+
+            new PasswordMigrationTool(threads, resetWeak).migrate(userFile);
+        }
+        catch (Exception e) {
+            System.out.println("Password migration failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Migrates the file in place, and reports what was done
+     */
+    public void migrate(File userFile) throws Exception {
+        long startTime = System.currentTimeMillis();
+        File tempFile = new File(userFile.getParentFile(), userFile.getName() + ".tmp");
+        FileInputStream in = new FileInputStream(userFile);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            migrate(in, out);
+            out.flush();
+            out.getFD().sync();
+        }
+        finally {
+            in.close();
+            out.close();
+            pool.shutdown();
+        }
+        File backupFile = new File(userFile.getParentFile(), userFile.getName() + ".bak");
+        Files.copy(userFile.toPath(), backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tempFile.toPath(), userFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        System.out.println("Migrated " + userCount + " users in " + elapsed + "ms: "
+                + hashedCount + " passwords hashed (" + (hashedCount * 1000L / elapsed)
+                + " per second), " + resetCount + " marked resetRequired, " + weakCount
+                + " older hashes left to upgrade at next login");
+        System.out.println("The original file was saved as " + backupFile);
+    }
+
+    /**
+     * Copies the users XML from in to out, changing passwords on the way
+     */
+    public void migrate(InputStream in, OutputStream out) throws Exception {
+        XMLInputFactory inFactory = XMLInputFactory.newInstance();
+        inFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        XMLEventReader reader = inFactory.createXMLEventReader(in, "UTF-8");
+        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+
+        ArrayDeque<UserRecord> pending = new ArrayDeque<UserRecord>();
+        int depth = 0;
+        UserRecord current = null;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+                if (depth == 2 && "user".equals(localName(event))) {
+                    current = new UserRecord();
+                }
+            }
+            if (current == null) {
+                // outside of any user, but keep the order of the output
+                while (!pending.isEmpty()) {
+                    writeUser(writer, pending.removeFirst());
+                }
+                writer.add(event);
+                if (event.isStartDocument()) {
+                    // the parser does not report the line break after the header
+                    writer.add(events.createCharacters("\n"));
+                }
+            }
+            else {
+                current.add(event, depth);
+            }
+            if (event.isEndElement()) {
+                depth--;
+                if (depth == 1 && current != null) {
+                    classify(current);
+                    pending.addLast(current);
+                    current = null;
+                    if (pending.size() > usersInFlight) {
+                        writeUser(writer, pending.removeFirst());
+                    }
+                }
+            }
+        }
+        while (!pending.isEmpty()) {
+            writeUser(writer, pending.removeFirst());
+        }
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * decides what has to be done for this user, and starts the hash if needed
+     */
+    private void classify(UserRecord user) {
+        userCount++;
+        final String password = user.password;
+        if (user.alreadyReset) {
+            return;
+        }
+        if (password == null || password.length() == 0) {
+            user.markReset = true;
+        }
+        else if (password.length() < 24) {
+            // transition hack plain text password, see AuthStyleLocal
+            user.newHash = pool.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return PasswordEncrypter.getSaltedHash(password);
+                }
+            });
+        }
+        else if (PasswordEncrypter.needsRehash(password)) {
+            if (resetWeak) {
+                user.markReset = true;
+            }
+            else {
+                weakCount++;
+            }
+        }
+    }
+
+    private void writeUser(XMLEventWriter writer, UserRecord user) throws Exception {
+        String newHash = null;
+        if (user.newHash != null) {
+            try {
+                newHash = user.newHash.get();
+            }
+            catch (ExecutionException e) {
+                throw new Exception("Unable to hash the password of a user", e.getCause());
+            }
+            hashedCount++;
+        }
+        if (user.markReset) {
+            resetCount++;
+        }
+        int last = user.events.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            if (i == user.passwordIndex && newHash != null) {
+                writer.add(events.createCharacters(newHash));
+                continue;
+            }
+            if (user.markReset && i == user.resetTextIndex) {
+                // the old value, replaced by the one written after the start
+                continue;
+            }
+            if (user.markReset && i == user.resetStartIndex) {
+                // overwrite a resetRequired that is there, most likely
+                // "false", since only the first one is ever read
+                writer.add(user.events.get(i));
+                writer.add(events.createCharacters("true"));
+                continue;
+            }
+            if (user.markReset && user.resetStartIndex < 0 && i == user.closingIndex) {
+                // add the flag as the last child, indented like the others
+                writer.add(events.createCharacters(user.childIndent));
+                writer.add(events.createStartElement("", "", "resetRequired"));
+                writer.add(events.createCharacters("true"));
+                writer.add(events.createEndElement("", "", "resetRequired"));
+            }
+            writer.add(user.events.get(i));
+        }
+    }
+
+    private static String localName(XMLEvent event) {
+        if (event.isStartElement()) {
+            return event.asStartElement().getName().getLocalPart();
+        }
+        return event.asEndElement().getName().getLocalPart();
+    }
+
+    /**
+     * The events of one user element, and what is to be done to it
+     */
+    private static class UserRecord {
+        final List<XMLEvent> events = new ArrayList<XMLEvent>();
+        String password = null;
+        int passwordIndex = -1;
+        boolean alreadyReset = false;
+        int resetStartIndex = -1;
+        int resetTextIndex = -1;
+        String childIndent = "\n    ";
+        int closingIndex = -1;
+        boolean markReset = false;
+        ForkJoinTask<String> newHash = null;
+
+        private String openChild = null;
+        private String lastText = null;
+
+        void add(XMLEvent event, int depth) {
+            if (event.isStartElement() && depth == 3) {
+                openChild = localName(event);
+                if ("resetRequired".equals(openChild) && resetStartIndex < 0) {
+                    resetStartIndex = events.size();
+                }
+                if (lastText != null && lastText.trim().length() == 0) {
+                    childIndent = lastText;
+                }
+            }
+            else if (event.isCharacters()) {
+                String text = event.asCharacters().getData();
+                lastText = text;
+                if ("password".equals(openChild)) {
+                    password = text.trim();
+                    passwordIndex = events.size();
+                }
+                else if ("resetRequired".equals(openChild) && resetTextIndex < 0
+                        && resetStartIndex == events.size() - 1) {
+                    alreadyReset = "true".equals(text.trim());
+                    resetTextIndex = events.size();
+                }
+            }
+            else if (event.isEndElement()) {
+                openChild = null;
+                if (depth == 2) {
+                    // the closing user tag, or the space before it
+                    closingIndex = events.size();
+                    if (closingIndex > 0 && events.get(closingIndex - 1).isCharacters()
+                            && events.get(closingIndex - 1).asCharacters().isWhiteSpace()) {
+                        closingIndex--;
+                    }
+                }
+            }
+            events.add(event);
+        }
+    }
+}
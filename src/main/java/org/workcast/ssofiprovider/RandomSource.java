@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.security.SecureRandom;
+
+/**
+ * The one place that random values for salts, confirmation codes and session
+ * ids come from.
+ *
+ * Each thread has its own SHA1PRNG generator, so threads never wait on each
+ * other for random numbers. The generators are seeded from one shared
+ * SecureRandom with nextBytes, which reads the non-blocking system source.
+ * Nothing here calls generateSeed, which on a quiet virtual machine can block
+ * for many seconds waiting for the kernel to collect entropy.
+ */
+public class RandomSource {
+
+    // after this many calls a thread's generator gets fresh seed
+    private static final int reseedInterval = 100000;
+
+    private static final SecureRandom seeder = new SecureRandom();
+
+    private static final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+
+    private static class Generator {
+        private SecureRandom random;
+        private int uses = reseedInterval;
+
+        SecureRandom get() {
+            if (++uses > reseedInterval) {
+                byte[] seed = new byte[32];
+                synchronized (seeder) {
+                    seeder.nextBytes(seed);
+                }
+                if (random == null) {
+                    random = newGenerator();
+                }
+                // when seeded before first use, SHA1PRNG does not seed itself
+                random.setSeed(seed);
+                uses = 0;
+            }
+            return random;
+        }
+    }
+
+    private static SecureRandom newGenerator() {
+        try {
+            return SecureRandom.getInstance("SHA1PRNG");
+        }
+        catch (Exception e) {
+            // every Java runtime has SHA1PRNG, but just in case
+            return new SecureRandom();
+        }
+    }
+
+    public static void nextBytes(byte[] bytes) {
+        generators.get().get().nextBytes(bytes);
+    }
+
+    /**
+     * a random number from 0 up to, but not including, bound
+     */
+    public static int nextInt(int bound) {
+        return generators.get().get().nextInt(bound);
+    }
+
+    /**
+     * A string of random upper case letters, which is safe to use in a URL,
+     * a cookie or a file name. Each letter carries a bit less than 5 bits,
+     * so 24 letters are well over 100 bits.
+     */
+    public static String newLetters(int count) {
+        SecureRandom random = generators.get().get();
+        char[] letters = new char[count];
+        for (int i = 0; i < count; i++) {
+            letters[i] = (char) ('A' + random.nextInt(26));
+        }
+        return new String(letters);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+/**
+ * Adds up the time a request spends in each phase of its handling, so that a
+ * slow request can say where the time went. OpenIDHandler starts one for each
+ * request and makes it current for the thread, so that code further down,
+ * like HashingService, can add to it without it being passed around. Timing
+ * uses System.nanoTime and adding to a phase is a couple of field updates.
+ */
+public class RequestTimer {
+
+    public enum Phase {
+        sessionLoad, auth, hash, render, sessionSave
+    }
+
+    private static final ThreadLocal<RequestTimer> current = new ThreadLocal<RequestTimer>();
+
+    private final long startNanos = System.nanoTime();
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    /**
+     * starts timing a request on this thread, call finish when it is done
+     */
+    public static RequestTimer start() {
+        RequestTimer timer = new RequestTimer();
+        current.set(timer);
+        return timer;
+    }
+
+    /**
+     * stops this thread adding to the timer, which can still be read
+     */
+    public void finish() {
+        current.remove();
+    }
+
+    /**
+     * adds to a phase of the request on this thread, if one is being timed
+     */
+    public static void addToCurrent(Phase phase, long elapsedNanos) {
+        RequestTimer timer = current.get();
+        if (timer != null) {
+            timer.add(phase, elapsedNanos);
+        }
+    }
+
+    public void add(Phase phase, long elapsedNanos) {
+        phaseNanos[phase.ordinal()] += elapsedNanos;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * The value for a Server-Timing header, for example
+     * "sessionLoad;dur=0.4, auth;dur=96.2, hash;dur=95.8, total;dur=101.3"
+     * with times in milliseconds. Phases that took no time are left out.
+     * Time in hash is part of the time in auth.
+     */
+    public String toServerTiming() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            long nanos = phaseNanos[phase.ordinal()];
+            if (nanos > 0) {
+                sb.append(phase.name()).append(";dur=").append(toMillis(nanos)).append(", ");
+            }
+        }
+        sb.append("total;dur=").append(toMillis(getElapsedNanos()));
+        return sb.toString();
+    }
+
+    /**
+     * every phase, including those that took no time, for the slow request log
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("total ").append(toMillis(getElapsedNanos())).append("ms");
+        for (Phase phase : Phase.values()) {
+            sb.append(", ").append(phase.name()).append(" ")
+                    .append(toMillis(phaseNanos[phase.ordinal()])).append("ms");
+        }
+        return sb.toString();
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 100000.0) / 10.0;
+    }
+}
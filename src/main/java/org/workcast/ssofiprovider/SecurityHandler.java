@@ -193,7 +193,7 @@ public class SecurityHandler {
                     sb.append(emailId + ",");
                 }
                 sb.append("\n************************");
-                System.out.println(sb.toString());
+                Log.warn(sb.toString());
             }
         }
     }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for reading or writing a session through the
+ * SessionHandler.
+ *
+ * All the SSOFI events are used the same way: create it and call begin()
+ * before the work, then report() after it. While the event is not being
+ * recorded report() does nothing but a quick check, and the event object
+ * itself is usually optimized away, so these can stay on every request.
+ */
+@Name("org.workcast.ssofi.Session")
+@Label("Session Load or Save")
+@Category("SSOFI")
+@Description("Reading or writing the session of a request")
+final class SessionEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    @Description("load, save, or touch when only the time is updated")
+    String operation;
+
+    @Label("Session Handler")
+    String handler;
+
+    @Label("Mode")
+    @Description("The openid.mode of the request")
+    String mode;
+
+    @Label("Outcome")
+    String outcome;
+
+    void report(String operation, SessionHandler handler, String mode, boolean ok) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.handler = handler.getClass().getSimpleName();
+            this.mode = mode;
+            this.outcome = ok ? "ok" : "error";
+            commit();
+        }
+    }
+}
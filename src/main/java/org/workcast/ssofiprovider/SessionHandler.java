@@ -29,6 +29,12 @@ public interface SessionHandler {
      */
     public AuthSession getAuthSession(String sessionId) throws Exception;
 
+    /**
+     * the session if there is one that has been used within the last hour,
+     * otherwise null, and nothing is created or saved
+     */
+    public AuthSession getAuthSessionIfExists(String sessionId) throws Exception;
+
     /**
      * if the session values are changed in any way, use this method to update
      * the persisted session record.
@@ -41,4 +47,9 @@ public interface SessionHandler {
      */
     public void markSessionTime(String sessionId) throws Exception;
 
+    /**
+     * number of sessions that have been used within the last hour
+     */
+    public int getSessionCount() throws Exception;
+
 }
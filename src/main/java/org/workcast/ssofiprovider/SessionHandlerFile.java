@@ -55,6 +55,14 @@ public class SessionHandlerFile implements SessionHandler {
      * pass in the session id, and get the session information back
      */
     public synchronized AuthSession getAuthSession(String sessionId) throws Exception {
+        AuthSession as = getAuthSessionIfExists(sessionId);
+        if (as == null) {
+            as = new AuthSession();
+        }
+        return as;
+    }
+
+    public synchronized AuthSession getAuthSessionIfExists(String sessionId) throws Exception {
         long oneHourAgo = System.currentTimeMillis() - 3600000;
         File sessionFile = new File(folder, sessionId + ".session");
         AuthSession as = null;
@@ -71,9 +79,6 @@ public class SessionHandlerFile implements SessionHandler {
                 sessionFile.delete();
             }
         }
-        if (as == null) {
-            as = new AuthSession();
-        }
         return as;
     }
 
@@ -92,17 +97,17 @@ public class SessionHandlerFile implements SessionHandler {
             sessionFile.delete();
         }
         if (sessionFile.exists()) {
-            System.out.println("Failed 1st time to delete " + sessionFile);
+            Log.warn("Failed 1st time to delete " + sessionFile);
             sessionFile.delete();
         }
         if (!tempFile.renameTo(sessionFile)) {
-            System.out.println("Failed 1st time to rename " + tempFile);
+            Log.warn("Failed 1st time to rename " + tempFile);
             if (!tempFile.renameTo(sessionFile)) {
-                System.out.println("Failed 2nd time to rename " + tempFile);
+                Log.warn("Failed 2nd time to rename " + tempFile);
             }
         }
         if (tempFile.exists()) {
-            System.out.println("Temp file remains " + tempFile);
+            Log.warn("Temp file remains " + tempFile);
         }
     }
 
@@ -115,4 +120,23 @@ public class SessionHandlerFile implements SessionHandler {
         sessionFile.setLastModified(System.currentTimeMillis());
     }
 
+    /**
+     * counts the session files, which takes a directory listing, so this is
+     * for occasional reporting and not for every request
+     */
+    public int getSessionCount() throws Exception {
+        long oneHourAgo = System.currentTimeMillis() - 3600000;
+        int count = 0;
+        File[] children = folder.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        for (File child : children) {
+            if (child.getName().endsWith(".session") && child.lastModified() > oneHourAgo) {
+                count++;
+            }
+        }
+        return count;
+    }
+
 }
@@ -30,6 +30,16 @@ public class SessionHandlerMemory implements SessionHandler {
     Hashtable<String, Long> allTimes = new Hashtable<String, Long>();
 
     public AuthSession getAuthSession(String sessionId) throws Exception {
+        AuthSession thisSession = getAuthSessionIfExists(sessionId);
+        if (thisSession == null) {
+            thisSession = new AuthSession();
+            saveAuthSession(sessionId, thisSession);
+            thisSession = thisSession.copy();
+        }
+        return thisSession;
+    }
+
+    public AuthSession getAuthSessionIfExists(String sessionId) throws Exception {
         // this represents the earliest time value where the entry could still be valid
         long oneHourAgo = System.currentTimeMillis() - 3600000;
         Long thisTime = allTimes.get(sessionId);
@@ -37,10 +47,8 @@ public class SessionHandlerMemory implements SessionHandler {
         if (thisTime != null && thisTime.longValue() > oneHourAgo) {
             thisSession = allSessions.get(sessionId);
         }
-
         if (thisSession == null) {
-            thisSession = new AuthSession();
-            saveAuthSession(sessionId, thisSession);
+            return null;
         }
         // return a copy of this to make sure that update is being done properly
         // and so this memory version is a valid test of the file version
@@ -59,4 +67,17 @@ public class SessionHandlerMemory implements SessionHandler {
         allTimes.put(sessionId, new Long(System.currentTimeMillis()));
     }
 
+    public int getSessionCount() throws Exception {
+        long oneHourAgo = System.currentTimeMillis() - 3600000;
+        int count = 0;
+        synchronized (allTimes) {
+            for (Long time : allTimes.values()) {
+                if (time.longValue() > oneHourAgo) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for making a page from a template, including the
+ * compression. See SessionEvent for how these are used.
+ */
+@Name("org.workcast.ssofi.TemplateRender")
+@Label("Template Render")
+@Category("SSOFI")
+@Description("Making a page from a template")
+final class TemplateRenderEvent extends jdk.jfr.Event {
+
+    @Label("Template")
+    String template;
+
+    @Label("Mode")
+    @Description("The openid.mode of the request")
+    String mode;
+
+    @Label("Bytes")
+    @Description("Size of the page as sent")
+    @DataAmount
+    long bytes;
+
+    @Label("Gzipped")
+    boolean gzipped;
+
+    void report(String template, String mode, long bytes, boolean gzipped) {
+        end();
+        if (shouldCommit()) {
+            this.template = template;
+            this.mode = mode;
+            this.bytes = bytes;
+            this.gzipped = gzipped;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the file for a template name: "name.style.htm" if there is one for
+ * the current authentication style, otherwise "name.htm".
+ *
+ * The answer is remembered for each template and style, so serving a page
+ * does not have to look at the file system at all. A background thread
+ * watches the folder, and when any file in it is added, removed or changed,
+ * the remembered answers are dropped, along with the compiled form of a
+ * changed template. If the folder can not be watched, the files are checked
+ * every time as before.
+ */
+public class TemplateResolver {
+
+    private final File folder;
+    private final ConcurrentHashMap<String, File> resolved = new ConcurrentHashMap<String, File>();
+    private volatile WatchService watcher = null;
+
+    // counts the changes seen, so that an answer worked out while a change
+    // arrived is not remembered
+    private volatile int changes = 0;
+
+    public TemplateResolver(File folder) {
+        this.folder = folder;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            folder.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            Thread t = new DaemonThreadFactory("SSOFI-template-watch").newThread(new Runnable() {
+                public void run() {
+                    watch();
+                }
+            });
+            t.start();
+            TemplateStreamer.setWatched(true);
+        }
+        catch (Exception e) {
+            Log.warn("SSOFI: can not watch the template folder " + folder
+                    + ", templates will be checked on every use: " + e);
+            watcher = null;
+        }
+    }
+
+    /**
+     * returns the template file to use, or throws if there is none
+     */
+    public File resolve(String name, String style) throws Exception {
+        String key = name + "|" + style;
+        File file = resolved.get(key);
+        if (file != null) {
+            return file;
+        }
+        int changesBefore = changes;
+        // fist check to see if a special auth style specific version exists
+        if (style != null) {
+            file = new File(folder, name + "." + style + ".htm");
+        }
+        if (file == null || !file.exists()) {
+            // if not, use the generic one
+            file = new File(folder, name + ".htm");
+            if (!file.exists()) {
+                throw new Exception("Can't find the template file: " + file.toString());
+            }
+        }
+        if (watcher != null && changesBefore == changes) {
+            resolved.put(key, file);
+        }
+        return file;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        TemplateStreamer.forgetAll();
+                    }
+                    else {
+                        Path changed = (Path) event.context();
+                        TemplateStreamer.forget(new File(folder, changed.toString()));
+                    }
+                }
+                // a file came or went, so any answer might be different now
+                changes++;
+                resolved.clear();
+                if (!key.reset()) {
+                    // the folder is gone, nothing can be trusted to stay the same
+                    Log.warn("SSOFI: stopped watching the template folder " + folder);
+                    TemplateStreamer.setWatched(false);
+                    watcher = null;
+                    resolved.clear();
+                    return;
+                }
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            // shut down
+        }
+        catch (InterruptedException e) {
+            // shut down
+        }
+    }
+
+    /**
+     * number of name and style combinations currently remembered
+     */
+    public int size() {
+        return resolved.size();
+    }
+
+    public void shutdown() {
+        TemplateStreamer.setWatched(false);
+        if (watcher != null) {
+            try {
+                watcher.close();
+            }
+            catch (Exception e) {
+                // closing anyway
+            }
+            watcher = null;
+        }
+    }
+}
@@ -23,10 +23,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.LineNumberReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.workcast.streams.HTMLWriter;
 
 /**
  * Reads a template file, searching for tokens, replacing those tokens with
@@ -94,38 +96,13 @@ public class TemplateStreamer {
      * Java. Always HTML encode all userentered data..
      */
     public static void writeHtml(Writer w, String t) throws Exception {
-        if (t == null) {
-            return; // treat it like an empty string, don't write "null"
-        }
-        for (int i = 0; i < t.length(); i++) {
-            char c = t.charAt(i);
-            switch (c) {
-            case '&':
-                w.write("&amp;");
-                continue;
-            case '<':
-                w.write("&lt;");
-                continue;
-            case '>':
-                w.write("&gt;");
-                continue;
-            case '"':
-                w.write("&quot;");
-                continue;
-            default:
-                w.write(c);
-                continue;
-            }
-        }
+        HTMLWriter.writeHtml(w, t);
     }
 
     public static void streamTemplate(Writer out, File file, String charset,
             TemplateTokenRetriever ttr) throws Exception {
         try {
-            InputStream is = new FileInputStream(file);
-            Reader isr = new InputStreamReader(is, charset);
-            streamTemplate(out, isr, ttr);
-            isr.close();
+            getTemplate(file, charset, null).render(out, ttr);
             out.flush();
         }
         catch (Exception e) {
@@ -133,6 +110,84 @@ public class TemplateStreamer {
         }
     }
 
+    private static final ConcurrentHashMap<File, CompiledTemplate> templateCache =
+            new ConcurrentHashMap<File, CompiledTemplate>();
+
+    // true while a TemplateResolver is watching the folder for changes
+    private static volatile boolean watched = false;
+
+    // counts the calls to forget, so that a file compiled while it changed
+    // is not kept
+    private static volatile int forgotten = 0;
+
+    /**
+     * Returns the compiled form of a template file. Each file is read and
+     * compiled only once, and again whenever its modification time changes.
+     * When the folder is watched, the modification time is not checked, and
+     * the watcher calls forget() when a file changes instead.
+     * Two threads might both compile a changed file at the same moment, which
+     * does no harm: they get the same result.
+     *
+     * tokenNames is passed on to CompiledTemplate.compile. Each file is
+     * expected to be used with one list of token names, the same array
+     * every time.
+     */
+    public static CompiledTemplate getTemplate(File file, String charset, String[] tokenNames)
+            throws Exception {
+        CompiledTemplate template = templateCache.get(file);
+        if (template != null && watched && template.getTokenNames() == tokenNames) {
+            return template;
+        }
+        int forgottenBefore = forgotten;
+        long lastModified = file.lastModified();
+        if (template != null && template.getLastModified() == lastModified
+                && template.getTokenNames() == tokenNames) {
+            return template;
+        }
+        if (!file.exists()) {
+            throw new Exception("The file (" + file.toString()
+                    + ") does not exist and can not be streamed as a template.");
+        }
+        Reader isr = new InputStreamReader(new FileInputStream(file), charset);
+        try {
+            template = CompiledTemplate.compile(isr, lastModified, tokenNames);
+        }
+        finally {
+            isr.close();
+        }
+        if (forgottenBefore == forgotten) {
+            templateCache.put(file, template);
+        }
+        return template;
+    }
+
+    static void setWatched(boolean isWatched) {
+        watched = isWatched;
+        if (!isWatched) {
+            templateCache.clear();
+        }
+    }
+
+    /**
+     * number of compiled templates currently kept
+     */
+    public static int getCacheSize() {
+        return templateCache.size();
+    }
+
+    /**
+     * drops the compiled form of a file that has changed
+     */
+    public static void forget(File file) {
+        forgotten++;
+        templateCache.remove(file);
+    }
+
+    public static void forgetAll() {
+        forgotten++;
+        templateCache.clear();
+    }
+
     /**
      * Read a text file from the Reader, and output it to the Writer while
      * searching for and substituting tokens.
@@ -147,67 +202,7 @@ public class TemplateStreamer {
      */
     public static void streamTemplate(Writer out, Reader template, TemplateTokenRetriever ttr)
             throws Exception {
-        LineNumberReader lnr = new LineNumberReader(template);
-
-        while (true) {
-
-            int ch = lnr.read();
-            if (ch < 0) {
-                return;
-            }
-
-            if (ch != '{') {
-                out.write(ch);
-                continue;
-            }
-
-            ch = lnr.read();
-            if (ch < 0) {
-                return;
-            }
-
-            if (ch != '{') {
-                out.write('{');
-                out.write(ch);
-                continue;
-            }
-
-            // now we definitely have a token
-            int tokenLineStart = lnr.getLineNumber();
-
-            try {
-                StringBuffer tokenVal = new StringBuffer();
-                ch = lnr.read();
-                if (ch < 0) {
-                    throw new Exception(
-                            "Template source stream ended before finding a closing brace character");
-                }
-
-                while (ch != '}') {
-                    tokenVal.append((char) ch);
-                    ch = lnr.read();
-                    if (ch < 0) {
-                        throw new Exception(
-                                "Template source stream ended before finding a closing brace character");
-                    }
-                }
-
-                // now we have see the closing brace
-                ttr.writeTokenValue(out, tokenVal.toString());
-
-                // read one more character, to get rid of the second closing
-                // brace.
-                ch = lnr.read();
-                if (ch != '}') {
-                    throw new Exception(
-                            "Found one, but did not find the second closing brace character");
-                }
-            }
-            catch (Exception e) {
-                throw new Exception("Problem with template token starting on line "
-                        + tokenLineStart, e);
-            }
-        }
+        CompiledTemplate.compile(template, 0, null).render(out, ttr);
     }
 
 }
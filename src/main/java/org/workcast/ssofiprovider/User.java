@@ -89,6 +89,38 @@ public class User extends Mel {
         setScalar("password", password);
     }
 
+    /**
+     * Set on users whose stored password can no longer be trusted, for
+     * example by the password migration tool. Such a user can not log in
+     * until a new password is set through the "forgot password" email.
+     */
+    public boolean getResetRequired() {
+        return "true".equals(getScalar("resetRequired"));
+    }
+
+    /**
+     * Clearing the flag removes the element, so that no "false" is left for
+     * the migration tool to find.
+     */
+    public void setResetRequired(boolean isTrue) {
+        if (isTrue) {
+            setScalar("resetRequired", "true");
+        }
+        else {
+            setScalar("resetRequired", null);
+        }
+    }
+
+    /**
+     * sets a new password hash, and clears any reset requirement
+     */
+    public void setNewPassword(String passwordHash) {
+        setPassword(passwordHash);
+        if (getResetRequired()) {
+            setResetRequired(false);
+        }
+    }
+
     public boolean getAdmin() {
         return "true".equals(getScalar("admin"));
     }
@@ -94,11 +94,27 @@ public class HTMLWriter extends Writer {
 					+ ") is longer than char array size (" + chs.length
 					+ ") passed to HTMLWriter.write(char[], int, int)");
 		}
+		// write the runs that need no change in one call each
+		int runStart = start;
 		for (int i = start; i < last; i++) {
-			writeHtmlChar(wrapped, chs[i]);
+			String entity = entityFor(chs[i]);
+			if (entity != null) {
+				if (i > runStart) {
+					wrapped.write(chs, runStart, i - runStart);
+				}
+				wrapped.write(entity);
+				runStart = i + 1;
+			}
+		}
+		if (last > runStart) {
+			wrapped.write(chs, runStart, last - runStart);
 		}
 	}
 
+	public void write(String str, int start, int len) throws IOException {
+		writeHtml(wrapped, str, start, start + len, false);
+	}
+
 	public void close() throws IOException {
 		wrapped.close();
 	}
@@ -108,22 +124,71 @@ public class HTMLWriter extends Writer {
 	}
 
 	private static void writeHtmlChar(Writer w, int ch) throws IOException {
+		String entity = entityFor(ch);
+		if (entity != null) {
+			w.write(entity);
+		}
+		else {
+			w.write(ch);
+		}
+	}
+
+	/**
+	 * returns the escaped form of a character that has a meaning in HTML, or
+	 * null for all the characters that can be written as they are
+	 */
+	private static String entityFor(int ch) {
 		switch (ch) {
 		case '&':
-			w.write("&amp;");
-			return;
+			return "&amp;";
 		case '<':
-			w.write("&lt;");
-			return;
+			return "&lt;";
 		case '>':
-			w.write("&gt;");
-			return;
+			return "&gt;";
 		case '"':
-			w.write("&quot;");
-			return;
+			return "&quot;";
 		default:
-			w.write(ch);
-			return;
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the characters from start up to end of the string, escaped.
+	 * Rather than one call per character, this looks ahead for the next
+	 * character that needs escaping and writes everything before it in one
+	 * call, so that a value with nothing to escape, like most URLs and names,
+	 * is passed on to the writer whole.
+	 */
+	private static void writeHtml(Writer w, String val, int start, int end, boolean withLines)
+			throws IOException {
+		int runStart = start;
+		for (int i = start; i < end; i++) {
+			char ch = val.charAt(i);
+			String entity;
+			if (ch == '\n' && withLines) {
+				entity = "<br/>\n";
+			}
+			else if (ch > '>') {
+				// none of the special characters are above '>'
+				continue;
+			}
+			else {
+				entity = entityFor(ch);
+				if (entity == null) {
+					continue;
+				}
+			}
+			if (i > runStart) {
+				w.write(val, runStart, i - runStart);
+			}
+			w.write(entity);
+			runStart = i + 1;
+		}
+		if (runStart == 0 && end == val.length()) {
+			w.write(val);
+		}
+		else if (end > runStart) {
+			w.write(val, runStart, end - runStart);
 		}
 	}
 
@@ -156,11 +221,7 @@ public class HTMLWriter extends Writer {
 		if ((val == null)) {
 			return;
 		}
-		int len = val.length();
-		for (int i = 0; i < len; i++) {
-			char ch = val.charAt(i);
-			writeHtmlChar(w, ch);
-		}
+		writeHtml(w, val, 0, val.length(), false);
 	}
 
 	/**
@@ -188,16 +249,7 @@ public class HTMLWriter extends Writer {
 		if ((val == null)) {
 			return;
 		}
-		int len = val.length();
-		for (int i = 0; i < len; i++) {
-			char ch = val.charAt(i);
-			if (ch == '\n') {
-				w.write("<br/>\n");
-			}
-			else {
-				writeHtmlChar(w, ch);
-			}
-		}
+		writeHtml(w, val, 0, val.length(), true);
 	}
 
 }
\ No newline at end of file
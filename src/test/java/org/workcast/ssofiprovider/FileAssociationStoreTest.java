@@ -0,0 +1,76 @@
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class FileAssociationStoreTest {
+
+	private File folder;
+
+	@Before
+	public void makeFolder() throws Exception {
+		folder = Files.createTempDirectory("ssofi-assoc").toFile();
+	}
+
+	@After
+	public void removeFolder() {
+		deleteAll(folder);
+	}
+
+	private static void deleteAll(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		f.delete();
+	}
+
+	@Test
+	public void load_generatedByOtherStore_sameKeyAndExpiry() throws Exception {
+		FileAssociationStore node1 = new FileAssociationStore(folder);
+		FileAssociationStore node2 = new FileAssociationStore(folder);
+
+		Association made = node1.generate(Association.TYPE_HMAC_SHA256, 300);
+		Association loaded = node2.load(made.getHandle());
+
+		assertThat(loaded.getType(), equalTo(Association.TYPE_HMAC_SHA256));
+		assertThat(loaded.getExpiry(), equalTo(made.getExpiry()));
+		assertThat(Arrays.equals(loaded.getMacKey().getEncoded(), made.getMacKey().getEncoded()),
+				is(true));
+	}
+
+	@Test
+	public void load_removedByOtherStore_null() throws Exception {
+		FileAssociationStore node1 = new FileAssociationStore(folder);
+		FileAssociationStore node2 = new FileAssociationStore(folder);
+		Association made = node1.generate(Association.TYPE_HMAC_SHA1, 300);
+		node2.load(made.getHandle());
+
+		node1.remove(made.getHandle());
+
+		assertThat(node2.load(made.getHandle()), nullValue());
+	}
+
+	@Test
+	public void load_handleNamingOtherFile_null() throws Exception {
+		FileAssociationStore store = new FileAssociationStore(folder);
+
+		assertThat(store.load("../../etc/passwd"), nullValue());
+		assertThat(store.load("1-../X"), nullValue());
+		assertThat(store.load("-ABC"), nullValue());
+		assertThat(store.load(null), nullValue());
+	}
+}
@@ -0,0 +1,90 @@
+package org.workcast.ssofiprovider;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.workcast.streams.HTMLWriter;
+
+/**
+ * HTML escaping of typical values, by HTMLWriter compared with the old way of
+ * writing one character at a time, which is copied here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlEscapeBenchmark {
+
+	@Param({ "name", "return_to", "stackTrace" })
+	public String kind;
+
+	private String value;
+
+	@Setup
+	public void setup() {
+		if ("name".equals(kind)) {
+			value = "Keith Swenson";
+		}
+		else if ("return_to".equals(kind)) {
+			value = "https://app.example.com/cog/t/index.htm?openid.ns=http%3A%2F%2Fspecs.openid.net"
+					+ "%2Fauth%2F2.0&openid.mode=id_res&openid.op_endpoint=https%3A%2F%2Fid.example.com"
+					+ "%2Fopenid%2F&openid.claimed_id=https%3A%2F%2Fid.example.com%2Fopenid%2Fkswenson";
+		}
+		else {
+			StringWriter sw = new StringWriter();
+			new Exception("Unable to <log> \"you\" in & out").printStackTrace(new java.io.PrintWriter(sw));
+			value = sw.toString();
+		}
+	}
+
+	@Benchmark
+	public int runLength() throws Exception {
+		StringWriter w = new StringWriter(value.length() + 64);
+		HTMLWriter.writeHtml(w, value);
+		return w.getBuffer().length();
+	}
+
+	@Benchmark
+	public int perCharacter() throws Exception {
+		StringWriter w = new StringWriter(value.length() + 64);
+		oldWriteHtml(w, value);
+		return w.getBuffer().length();
+	}
+
+	private static void oldWriteHtml(Writer w, String t) throws Exception {
+		for (int i = 0; i < t.length(); i++) {
+			char c = t.charAt(i);
+			switch (c) {
+			case '&':
+				w.write("&amp;");
+				continue;
+			case '<':
+				w.write("&lt;");
+				continue;
+			case '>':
+				w.write("&gt;");
+				continue;
+			case '"':
+				w.write("&quot;");
+				continue;
+			default:
+				w.write(c);
+				continue;
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.workcast.ssofiprovider;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketFor_exactlyOnBound_countsInThatBucket() {
+
+		assertThat(LatencyHistogram.bucketFor(100000L), is(0));
+		assertThat(LatencyHistogram.bucketFor(100001L), is(1));
+		assertThat(LatencyHistogram.getUpperBoundSeconds(LatencyHistogram.bucketFor(1000000L)),
+				is(0.001));
+	}
+
+	@Test
+	public void bucketFor_slowerThanLastBound_lastBucket() {
+
+		int last = LatencyHistogram.getBucketCount() - 1;
+
+		assertThat(LatencyHistogram.bucketFor(Long.MAX_VALUE), is(last));
+		assertThat(LatencyHistogram.getUpperBoundSeconds(last),
+				is(Double.POSITIVE_INFINITY));
+	}
+
+	@Test
+	public void record_severalTimes_bucketsAddUpToCount() {
+		LatencyHistogram h = new LatencyHistogram();
+
+		h.record(0);
+		h.record(3000000L);
+		h.record(3000000L);
+		h.record(60000000000L);
+
+		long total = 0;
+		for (long c : h.getBuckets()) {
+			total += c;
+		}
+		assertThat(total, equalTo(h.getCount()));
+		assertThat(h.getBuckets()[LatencyHistogram.bucketFor(3000000L)], equalTo(2L));
+		assertThat(h.getMaxNanos(), equalTo(60000000000L));
+	}
+}
@@ -0,0 +1,106 @@
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class LogTest {
+
+	private File folder;
+
+	private File startLog(String level, String maxBytes) throws Exception {
+		folder = Files.createTempDirectory("ssofi-log").toFile();
+		File file = new File(folder, "ssofi.log");
+		Properties settings = new Properties();
+		settings.setProperty("logFile", file.getPath());
+		settings.setProperty("logLevel", level);
+		settings.setProperty("logMaxBytes", maxBytes);
+		settings.setProperty("logFileCount", "2");
+		Log.initialize(settings);
+		return file;
+	}
+
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	@After
+	public void stopLog() throws Exception {
+		Log.initialize(new Properties());
+		Log.shutdown();
+		if (folder != null) {
+			for (File f : folder.listFiles()) {
+				f.delete();
+			}
+			folder.delete();
+		}
+	}
+
+	@Test
+	public void log_belowLevel_notWritten() throws Exception {
+		File file = startLog("WARN", "0");
+
+		Log.info("just so you know");
+		Log.warn("watch out");
+		Log.shutdown();
+
+		String text = read(file);
+		assertThat(text, not(containsString("just so you know")));
+		assertThat(text, containsString("WARN"));
+		assertThat(text, containsString("watch out"));
+	}
+
+	@Test
+	public void error_repeated_writtenOnceThenCounted() throws Exception {
+		File file = startLog("INFO", "0");
+		Exception e = new Exception("directory is down");
+
+		Log.error("lookup failed", e);
+		Log.error("lookup failed", e);
+		Log.error("lookup failed", e);
+		Log.shutdown();
+
+		String text = read(file);
+		assertThat(text.split("lookup failed", -1).length, is(3));
+		assertThat(text, containsString("previous message repeated 2 more times: lookup failed"));
+	}
+
+	@Test
+	public void log_afterShutdown_noThreadStartedNorWritten() throws Exception {
+		File file = startLog("INFO", "0");
+		Log.info("before shutdown");
+		Log.shutdown();
+
+		Log.info("after shutdown");
+
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			assertThat(t.getName().startsWith("SSOFI-log"), is(false));
+		}
+		String text = read(file);
+		assertThat(text, containsString("before shutdown"));
+		assertThat(text, not(containsString("after shutdown")));
+	}
+
+	@Test
+	public void log_pastMaxBytes_rotated() throws Exception {
+		startLog("INFO", "100");
+
+		for (int i = 0; i < 20; i++) {
+			Log.info("line number " + i + " of the rotation test");
+		}
+		Log.shutdown();
+
+		assertThat(new File(folder, "ssofi.log.1").exists(), is(true));
+		assertThat(new File(folder, "ssofi.log.3").exists(), is(false));
+		assertThat(new File(folder, "ssofi.log.1").length() < 200, is(true));
+	}
+}
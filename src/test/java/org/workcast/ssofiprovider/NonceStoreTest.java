@@ -0,0 +1,107 @@
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class NonceStoreTest {
+
+	private File folder;
+
+	@Before
+	public void makeFolder() throws Exception {
+		folder = Files.createTempDirectory("ssofi-nonce").toFile();
+	}
+
+	@After
+	public void removeFolder() {
+		deleteAll(folder);
+	}
+
+	private static void deleteAll(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		f.delete();
+	}
+
+	private static String nonceAt(long time, String suffix) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time)) + suffix;
+	}
+
+	@Test
+	public void checkAndRecord_sameNonceTwice_refusesSecond() throws Exception {
+		NonceStore store = new NonceStore(900000, 100, null);
+		String nonce = nonceAt(System.currentTimeMillis(), "0");
+		assertThat(store.checkAndRecord(nonce, "h1"), is(true));
+		assertThat(store.checkAndRecord(nonce, "h1"), is(false));
+		assertThat(store.size(), is(equalTo(1)));
+	}
+
+	@Test
+	public void checkAndRecord_sameNonceOtherHandle_accepts() throws Exception {
+		NonceStore store = new NonceStore(900000, 100, null);
+		String nonce = nonceAt(System.currentTimeMillis(), "0");
+		assertThat(store.checkAndRecord(nonce, "h1"), is(true));
+		assertThat(store.checkAndRecord(nonce, "h2"), is(true));
+	}
+
+	@Test
+	public void checkAndRecord_tooOldOrMalformed_refuses() throws Exception {
+		NonceStore store = new NonceStore(900000, 100, null);
+		assertThat(store.checkAndRecord(nonceAt(System.currentTimeMillis() - 1000000, "0"), "h"),
+				is(false));
+		assertThat(store.checkAndRecord("not a nonce at all", "h"), is(false));
+		assertThat(store.size(), is(equalTo(0)));
+	}
+
+	@Test
+	public void checkAndRecord_full_refuses() throws Exception {
+		NonceStore store = new NonceStore(900000, 3, null);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 3; i++) {
+			assertThat(store.checkAndRecord(nonceAt(now, "n" + i), "h"), is(true));
+		}
+		assertThat(store.checkAndRecord(nonceAt(now, "n3"), "h"), is(false));
+	}
+
+	@Test
+	public void checkAndRecord_manyNonces_allRemembered() throws Exception {
+		NonceStore store = new NonceStore(900000, 100000, null);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 5000; i++) {
+			assertThat(store.checkAndRecord(nonceAt(now, "n" + i), "h"), is(true));
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertThat(store.checkAndRecord(nonceAt(now, "n" + i), "h"), is(false));
+		}
+		assertThat(store.size(), is(equalTo(5000)));
+	}
+
+	@Test
+	public void checkAndRecord_sharedFolder_refusedByOtherServer() throws Exception {
+		String nonce = nonceAt(System.currentTimeMillis(), "0");
+		NonceStore first = new NonceStore(900000, 100, folder);
+		NonceStore second = new NonceStore(900000, 100, folder);
+
+		assertThat(first.checkAndRecord(nonce, "h"), is(true));
+		assertThat(second.checkAndRecord(nonce, "h"), is(false));
+		assertThat(second.checkAndRecord(nonceAt(System.currentTimeMillis(), "1"), "h"),
+				is(true));
+	}
+}
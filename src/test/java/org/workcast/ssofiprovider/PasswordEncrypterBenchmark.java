@@ -0,0 +1,69 @@
+package org.workcast.ssofiprovider;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of checking a password.  The legacy value uses only 10 iterations, so
+ * it mostly measures the overhead around the hash: parsing, decoding, finding
+ * the Mac and comparing.  Run with "gradle benchmark", which adds the gc
+ * profiler so that the allocations per check are reported as
+ * gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordEncrypterBenchmark {
+
+	private String legacyValue;
+	private String currentValue;
+	private byte[] salt;
+
+	@Setup
+	public void setup() throws Exception {
+		legacyValue = "DDHGJEPLIACCBBMNOGLOFKDIFCEGPPAAABCDEFGHIJKLMNOPAABBCCDDEEFFGGHH$"
+				+ "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+		currentValue = "$v1$PBKDF2WithHmacSHA256$1000$"
+				+ "DDHGJEPLIACCBBMNOGLOFKDIFCEGPPAAABCDEFGHIJKLMNOPAABBCCDDEEFFGGHH$"
+				+ "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+		salt = PasswordEncrypter.hexDecode(
+				"DDHGJEPLIACCBBMNOGLOFKDIFCEGPPAAABCDEFGHIJKLMNOPAABBCCDDEEFFGGHH");
+	}
+
+	@Benchmark
+	public boolean checkLegacy() throws Exception {
+		return PasswordEncrypter.check("secret", legacyValue);
+	}
+
+	@Benchmark
+	public boolean checkThousandIterations() throws Exception {
+		return PasswordEncrypter.check("secret", currentValue);
+	}
+
+	/**
+	 * the same work as checkThousandIterations done the way it used to be,
+	 * for comparison
+	 */
+	@Benchmark
+	public byte[] keyFactoryThousandIterations() throws Exception {
+		SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		return f.generateSecret(new PBEKeySpec("secret".toCharArray(), salt, 1000, 256))
+				.getEncoded();
+	}
+}
@@ -0,0 +1,65 @@
+package org.workcast.ssofiprovider;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PasswordEncrypterTest {
+
+	private static final byte[] SALT = PasswordEncrypter.hexDecode(
+			"DDHGJEPLIACCBBMNOGLOFKDIFCEGPPAAABCDEFGHIJKLMNOPAABBCCDDEEFFGGHH");
+
+	private static String referenceHash(String password, String algorithm, int iterations)
+			throws Exception {
+		SecretKeyFactory f = SecretKeyFactory.getInstance(algorithm);
+		byte[] key = f.generateSecret(new PBEKeySpec(password.toCharArray(), SALT, iterations, 256))
+				.getEncoded();
+		return PasswordEncrypter.hexEncode(key);
+	}
+
+	@Test
+	public void check_legacyValueFromKeyFactory_true() throws Exception {
+
+		String stored = PasswordEncrypter.hexEncode(SALT) + "$"
+				+ referenceHash("secret", "PBKDF2WithHmacSHA1", 10);
+
+		assertThat(PasswordEncrypter.check("secret", stored), is(true));
+		assertThat(PasswordEncrypter.check("Secret", stored), is(false));
+	}
+
+	@Test
+	public void check_versionedValueFromKeyFactory_true() throws Exception {
+
+		String[] passwords = { "secret", "", "pässwörd 漢字" };
+		for (String password : passwords) {
+			String stored = "$v1$PBKDF2WithHmacSHA256$1234$" + PasswordEncrypter.hexEncode(SALT)
+					+ "$" + referenceHash(password, "PBKDF2WithHmacSHA256", 1234);
+
+			assertThat(PasswordEncrypter.check(password, stored), is(true));
+			assertThat(PasswordEncrypter.check(password + "x", stored), is(false));
+		}
+	}
+
+	@Test
+	public void check_malformedValue_false() throws Exception {
+
+		assertThat(PasswordEncrypter.check("secret", "no dollar sign here"), is(false));
+		assertThat(PasswordEncrypter.check("secret", "AB$CD$EF"), is(false));
+		assertThat(PasswordEncrypter.check("secret", "$v1$PBKDF2WithHmacSHA1$ten$AB$CD"), is(false));
+		assertThat(PasswordEncrypter.check("secret", "$v1$PBKDF2WithHmacSHA1$10$AB"), is(false));
+	}
+
+	@Test
+	public void getSaltedHash_newValue_checksAndIsCurrent() throws Exception {
+
+		String stored = PasswordEncrypter.getSaltedHash("secret");
+
+		assertThat(PasswordEncrypter.check("secret", stored), is(true));
+		assertThat(PasswordEncrypter.needsRehash(stored), is(false));
+		assertThat(PasswordEncrypter.needsRehash("ABCD$ABCD"), is(true));
+	}
+}
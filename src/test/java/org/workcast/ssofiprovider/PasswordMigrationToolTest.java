@@ -0,0 +1,63 @@
+package org.workcast.ssofiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+import org.workcast.mendocino.Mel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PasswordMigrationToolTest {
+
+	// an unversioned salt$hash value, which always needs a rehash
+	private static final String WEAK_HASH =
+			"DDHGJEPLIACCBBMNOGLOFKDIFCEGPPAA$ABCDEFGHIJKLMNOPAABBCCDDEEFFGGHH";
+
+	private static User migrateOneUser(byte[] usersXml) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PasswordMigrationTool(1, true).migrate(new ByteArrayInputStream(usersXml), out);
+		Mel users = Mel.readInputStream(new ByteArrayInputStream(out.toByteArray()), Mel.class);
+		return users.getChildren("user", User.class).get(0);
+	}
+
+	@Test
+	public void setNewPassword_resetCleared_noElementLeft() throws Exception {
+		Mel users = Mel.createEmpty("users", Mel.class);
+		User user = users.addChild("user", User.class);
+		user.setResetRequired(true);
+		user.setNewPassword(WEAK_HASH);
+
+		assertThat(user.getResetRequired(), is(false));
+		assertThat(user.getVector("resetRequired").size(), is(0));
+	}
+
+	@Test
+	public void migrate_resetWeakAfterResetCleared_resetRequired() throws Exception {
+		Mel users = Mel.createEmpty("users", Mel.class);
+		User user = users.addChild("user", User.class);
+		user.addAddress("someone@example.com");
+		user.setResetRequired(true);
+		user.setNewPassword(WEAK_HASH);
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		users.writeToOutputStream(file);
+
+		User migrated = migrateOneUser(file.toByteArray());
+
+		assertThat(migrated.getResetRequired(), is(true));
+	}
+
+	@Test
+	public void migrate_resetWeakWithFalseFlag_flagOverwritten() throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<users>\n  <user>\n"
+				+ "    <address>someone@example.com</address>\n"
+				+ "    <password>" + WEAK_HASH + "</password>\n"
+				+ "    <resetRequired>false</resetRequired>\n  </user>\n</users>\n";
+
+		User migrated = migrateOneUser(xml.getBytes("UTF-8"));
+
+		assertThat(migrated.getResetRequired(), is(true));
+		assertThat(migrated.getVector("resetRequired").size(), is(1));
+	}
+}
@@ -0,0 +1,50 @@
+package org.workcast.ssofiprovider;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of making a salt when many threads want one at the same time,
+ * compared with all threads sharing one SecureRandom.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class RandomSourceBenchmark {
+
+	private final SecureRandom shared = new SecureRandom();
+
+	@Benchmark
+	public byte[] randomSourceSalt() {
+		byte[] salt = new byte[32];
+		RandomSource.nextBytes(salt);
+		return salt;
+	}
+
+	@Benchmark
+	public byte[] sharedSecureRandomSalt() {
+		byte[] salt = new byte[32];
+		shared.nextBytes(salt);
+		return salt;
+	}
+
+	@Benchmark
+	public String sessionId() {
+		return RandomSource.newLetters(24);
+	}
+}
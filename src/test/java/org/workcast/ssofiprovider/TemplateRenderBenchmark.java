@@ -0,0 +1,90 @@
+package org.workcast.ssofiprovider;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a real page from src/main/webapp, through a Writer the way a
+ * servlet writer works, compared with rendering into a PageBuffer that is
+ * then written to the output stream.  The "bytes" counter gives the bytes
+ * per second of page produced.  Run from the project folder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateRenderBenchmark {
+
+	@Param({ "promptedLogin", "displayLoggedIn" })
+	public String page;
+
+	private CompiledTemplate template;
+	private TemplateTokenRetriever values;
+
+	/**
+	 * stands in for the servlet output stream, and counts what it gets
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class ByteCounter extends OutputStream {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+
+		public void write(int b) {
+			bytes++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			bytes += len;
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		template = TemplateStreamer.getTemplate(new File("src/main/webapp/" + page + ".htm"),
+				"UTF-8", null);
+		values = new TemplateTokenRetriever() {
+			public void writeTokenValue(Writer out, String token) throws Exception {
+				TemplateStreamer.writeHtml(out, "https://app.example.com/openid/return?x=1&y=é");
+			}
+		};
+	}
+
+	@Benchmark
+	public void writerPath(ByteCounter counter) throws Exception {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(counter, "UTF-8"));
+		template.render(out, values);
+		out.flush();
+	}
+
+	@Benchmark
+	public void pageBufferPath(ByteCounter counter) throws Exception {
+		PageBuffer buffer = new PageBuffer(template.getSizeHint());
+		template.render(buffer, values);
+		buffer.writeTo(counter);
+	}
+}
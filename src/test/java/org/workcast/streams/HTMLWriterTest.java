@@ -0,0 +1,53 @@
+package org.workcast.streams;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class HTMLWriterTest {
+
+	private static String escape(String val) throws Exception {
+		StringWriter w = new StringWriter();
+		HTMLWriter.writeHtml(w, val);
+		return w.toString();
+	}
+
+	@Test
+	public void writeHtml_nothingToEscape_unchanged() throws Exception {
+
+		assertThat(escape("https://host/path?x=1"), equalTo("https://host/path?x=1"));
+		assertThat(escape(""), equalTo(""));
+	}
+
+	@Test
+	public void writeHtml_specialCharacters_escaped() throws Exception {
+
+		assertThat(escape("<a href=\"x\">b & c</a>"),
+				equalTo("&lt;a href=&quot;x&quot;&gt;b &amp; c&lt;/a&gt;"));
+		assertThat(escape("&start and end>"), equalTo("&amp;start and end&gt;"));
+	}
+
+	@Test
+	public void writeHtmlWithLines_newlines_becomeBreaks() throws Exception {
+
+		StringWriter w = new StringWriter();
+		HTMLWriter.writeHtmlWithLines(w, "one\ntwo & three\n");
+
+		assertThat(w.toString(), equalTo("one<br/>\ntwo &amp; three<br/>\n"));
+	}
+
+	@Test
+	public void write_throughWrapper_escapesSlices() throws Exception {
+
+		StringWriter w = new StringWriter();
+		HTMLWriter hw = new HTMLWriter(w);
+		hw.write("xx<y>xx", 2, 3);
+		hw.write("a\"b".toCharArray(), 0, 3);
+		hw.write('&');
+
+		assertThat(w.toString(), equalTo("&lt;y&gt;a&quot;b&amp;"));
+	}
+}